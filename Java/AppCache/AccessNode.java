@@ -0,0 +1,43 @@
+/**
+ * AccessOrder 链表中的节点，各存储层的条目继承它
+ */
+class AccessNode {
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    final int hash;
+    AccessNode prev;
+    AccessNode next;
+    /**
+     * W-TinyLFU 时节点所在的区域
+     */
+    int queue;
+
+    AccessNode() {
+        this(0);
+    }
+
+    /**
+     * @param hash key 的 hash，W-TinyLFU 用来统计访问频率
+     */
+    AccessNode(int hash) {
+        this.hash = hash;
+    }
+
+    void linkBefore(AccessNode node) {
+        next = node;
+        prev = node.prev;
+        prev.next = this;
+        node.prev = this;
+    }
+
+    void unlink() {
+        if (prev != null) {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+}
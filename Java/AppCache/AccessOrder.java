@@ -0,0 +1,324 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按访问顺序排列的双向链表，各存储层共用
+ * <p>
+ * 读取时不加锁，只把访问过的节点放进按线程分散的环形缓冲区，缓冲区满了或有其他线程同时写入时
+ * 直接丢弃这次记录；持有 lock 的线程在写入前或缓冲区积累较多时按顺序把这些节点移到队尾。
+ * 丢弃的访问记录只会让淘汰顺序略有偏差，不影响数据正确性
+ */
+class AccessOrder<N extends AccessNode> {
+    private static final int READ_BUFFER_COUNT = ceilingPowerOfTwo(
+            Math.min(64, 4 * Runtime.getRuntime().availableProcessors()));
+    /**
+     * 缓冲区中积累的节点超过该值时尝试整理
+     */
+    private static final int DRAIN_THRESHOLD = ReadBuffer.SIZE / 2;
+
+    /**
+     * 修改链表和所属存储层的计数时持有
+     */
+    final ReentrantLock lock = new ReentrantLock();
+    /**
+     * LRU 时是唯一的链表；W-TinyLFU 时是窗口区
+     */
+    private final AccessNode head = new AccessNode();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFER_COUNT];
+    /**
+     * 以下字段只在 W-TinyLFU 时使用，sketch 为 null 时表示 LRU
+     */
+    private final FrequencySketch sketch;
+    private final AccessNode probation = new AccessNode();
+    private final AccessNode protectedHead = new AccessNode();
+    /**
+     * 上次 {@link #resetAppliedAccesses} 之后从缓冲区应用到链表上的访问次数，只在持有 lock 时修改
+     */
+    private volatile int appliedAccesses;
+    private int windowCount;
+    private int probationCount;
+    private int protectedCount;
+
+    AccessOrder() {
+        this(AppCache.EvictionPolicy.LRU, 0);
+    }
+
+    /**
+     * @param expectedCount 预计的最大条数，W-TinyLFU 按它分配计数表，之后条数更多时再扩大
+     */
+    AccessOrder(AppCache.EvictionPolicy policy, int expectedCount) {
+        if (policy == AppCache.EvictionPolicy.TINY_LFU) {
+            sketch = new FrequencySketch();
+            sketch.ensureCapacity(Math.min(expectedCount, FrequencySketch.INITIAL_MAX));
+        } else {
+            sketch = null;
+        }
+        reset(head);
+        reset(probation);
+        reset(protectedHead);
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    private static void reset(AccessNode sentinel) {
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+    }
+
+    static int ceilingPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * 记录一次访问，不会阻塞
+     *
+     * @return 这次调用是否把缓冲的访问记录应用到了链表上
+     */
+    boolean recordAccess(N node) {
+        int index = (int) Thread.currentThread().getId() & (readBuffers.length - 1);
+        int pending = readBuffers[index].offer(node);
+        if ((pending < 0 || pending >= DRAIN_THRESHOLD) && lock.tryLock()) {
+            try {
+                drainReadBuffers();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把缓冲的访问记录应用到链表上，调用方需持有 lock
+     */
+    void drainReadBuffers() {
+        int drained = 0;
+        for (ReadBuffer buffer : readBuffers) {
+            drained += buffer.drainTo(this);
+        }
+        if (drained > 0) {
+            appliedAccesses += drained;
+        }
+    }
+
+    /**
+     * 可以不加锁读取
+     */
+    int appliedAccesses() {
+        return appliedAccesses;
+    }
+
+    /**
+     * 调用方需持有 lock
+     */
+    void resetAppliedAccesses() {
+        appliedAccesses = 0;
+    }
+
+    /**
+     * 加到队尾，W-TinyLFU 时加到窗口区的队尾，调用方需持有 lock
+     */
+    void add(N node) {
+        AccessNode added = node;
+        if (sketch == null) {
+            link(added, head);
+            return;
+        }
+        sketch.ensureCapacity(windowCount + probationCount + protectedCount + 1);
+        sketch.increment(added.hash);
+        added.queue = AccessNode.WINDOW;
+        link(added, head);
+        windowCount++;
+        if (windowCount > maxWindow()) {
+            // 窗口区的溢出先进入试用区，淘汰时再和试用区最久未使用的节点比较访问频率
+            AccessNode first = head.next;
+            unlink(first);
+            windowCount--;
+            first.queue = AccessNode.PROBATION;
+            link(first, probation);
+            probationCount++;
+        }
+    }
+
+    /**
+     * 调用方需持有 lock
+     */
+    void remove(N node) {
+        AccessNode removed = node;
+        if (removed.prev != null && sketch != null) {
+            addCount(removed.queue, -1);
+        }
+        unlink(removed);
+    }
+
+    /**
+     * 用 replacement 替换 node 在链表中的位置，调用方需持有 lock
+     */
+    void replace(N node, N replacement) {
+        AccessNode old = node;
+        if (old.prev != null) {
+            AccessNode added = replacement;
+            added.queue = old.queue;
+            link(added, old.next);
+            unlink(old);
+        }
+    }
+
+    void moveToTail(AccessNode node) {
+        // 已经移除的节点不再加回来
+        if (node.prev == null) {
+            return;
+        }
+        if (sketch == null) {
+            unlink(node);
+            link(node, head);
+            return;
+        }
+        sketch.increment(node.hash);
+        unlink(node);
+        switch (node.queue) {
+            case AccessNode.WINDOW:
+                link(node, head);
+                break;
+            case AccessNode.PROBATION:
+                // 试用区中再次被访问的节点升入保护区，保护区满时把最久未使用的节点降回试用区
+                probationCount--;
+                node.queue = AccessNode.PROTECTED;
+                link(node, protectedHead);
+                protectedCount++;
+                if (protectedCount > maxProtected()) {
+                    AccessNode demoted = protectedHead.next;
+                    unlink(demoted);
+                    protectedCount--;
+                    demoted.queue = AccessNode.PROBATION;
+                    link(demoted, probation);
+                    probationCount++;
+                }
+                break;
+            default:
+                link(node, protectedHead);
+                break;
+        }
+    }
+
+    private void addCount(int queue, int delta) {
+        switch (queue) {
+            case AccessNode.WINDOW:
+                windowCount += delta;
+                break;
+            case AccessNode.PROBATION:
+                probationCount += delta;
+                break;
+            default:
+                protectedCount += delta;
+                break;
+        }
+    }
+
+    /**
+     * 窗口区占总条数的 1%
+     */
+    private int maxWindow() {
+        return Math.max(1, (windowCount + probationCount + protectedCount) / 100);
+    }
+
+    /**
+     * 保护区占主区的 80%
+     */
+    private int maxProtected() {
+        return (int) ((probationCount + protectedCount) * 0.8);
+    }
+
+    private static void link(AccessNode node, AccessNode before) {
+        node.linkBefore(before);
+    }
+
+    private static void unlink(AccessNode node) {
+        node.unlink();
+    }
+
+    /**
+     * W-TinyLFU 时，在为一个新 key 淘汰前比较它和下一个要淘汰的节点的访问频率（算上这次写入），
+     * 不高于后者时拒绝，避免只访问一次的数据挤掉常用的数据；被拒绝的写入同样计入频率。
+     * LRU 时总是接受，调用方需持有 lock
+     */
+    boolean admit(int hash) {
+        if (sketch == null) {
+            return true;
+        }
+        AccessNode victim = eldest();
+        if (victim == null || sketch.frequency(hash) + 1 > sketch.frequency(victim.hash)) {
+            return true;
+        }
+        sketch.increment(hash);
+        return false;
+    }
+
+    /**
+     * W-TinyLFU 时，试用区中最近进入的节点（通常刚从窗口区溢出）和试用区中最久未使用的节点比较
+     * 访问频率，频率不高于后者的新节点被拒绝，否则淘汰后者
+     *
+     * @return 下一个应该淘汰的节点，LRU 时是最久未使用的节点，调用方需持有 lock
+     */
+    @SuppressWarnings("unchecked")
+    N eldest() {
+        if (sketch == null) {
+            return (N) first(head);
+        }
+        AccessNode victim = first(probation);
+        if (victim == null) {
+            victim = first(protectedHead);
+        }
+        if (victim == null) {
+            return (N) first(head);
+        }
+        AccessNode candidate = probation.prev;
+        if (candidate != probation && candidate != victim
+                && sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+            return (N) candidate;
+        }
+        return (N) victim;
+    }
+
+    private static AccessNode first(AccessNode sentinel) {
+        return sentinel.next == sentinel ? null : sentinel.next;
+    }
+
+    /**
+     * @return 从最久未使用到最近使用排列的所有节点，W-TinyLFU 时依次为试用区、保护区、窗口区，
+     * 调用方需持有 lock
+     */
+    @SuppressWarnings("unchecked")
+    List<N> snapshot() {
+        drainReadBuffers();
+        List<N> nodes = new ArrayList<>();
+        for (AccessNode sentinel : new AccessNode[]{probation, protectedHead, head}) {
+            for (AccessNode node = sentinel.next; node != sentinel; node = node.next) {
+                nodes.add((N) node);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * 调用方需持有 lock
+     */
+    void clear() {
+        drainReadBuffers();
+        for (AccessNode sentinel : new AccessNode[]{probation, protectedHead, head}) {
+            AccessNode node = sentinel.next;
+            while (node != sentinel) {
+                AccessNode next = node.next;
+                node.prev = null;
+                node.next = null;
+                node = next;
+            }
+            reset(sentinel);
+        }
+        windowCount = 0;
+        probationCount = 0;
+        protectedCount = 0;
+    }
+}
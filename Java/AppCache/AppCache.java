@@ -1,39 +1,57 @@
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.PixelFormat;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
-import com.bubiu.counter.entity.StartThread;
-
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * 线程安全：读取不加锁，只在按线程分散的缓冲区中记录访问顺序；写入和删除按 key 分段加锁，
+ * 不同 key 的磁盘读写可以并行，只有更新 LRU 链表和淘汰时短暂持有各存储层自己的一把锁
+ *
  * @author Michael Yang（www.yangfuhai.com） update at 2013.08.07
  */
 public final class  AppCache {
@@ -43,8 +61,52 @@ public final class  AppCache {
 
     private static final int MAX_SIZE = 1000 * 1000 * 50;
     private static final int MAX_COUNT = Integer.MAX_VALUE;
-    private static Map<String, AppCache> mInstanceMap = new HashMap<>();
-    private Manager mCache;
+    /**
+     * 数据大于等于该值时 getByteBuffer 使用内存映射读取
+     */
+    private static final int MAP_THRESHOLD = 128 * 1024;
+    private static final ConcurrentHashMap<String, AppCache> mInstanceMap =
+            new ConcurrentHashMap<>();
+    /**
+     * 按 id 注册的编码方式
+     */
+    private static final AtomicReferenceArray<Codec> mCodecs = new AtomicReferenceArray<>(128);
+    /**
+     * Java 序列化，默认的编码方式
+     */
+    public static final Codec JAVA_CODEC = new JavaCodec();
+    /**
+     * 紧凑的二进制编码，适合基本类型、字符串以及由它们组成的 List、Set、Map
+     */
+    public static final Codec BINARY_CODEC = new BinaryCodec();
+
+    static {
+        registerCodec(BINARY_CODEC);
+    }
+    private Store mCache;
+    private MemoryCache mMemory;
+    private OffHeapCache mOffHeap;
+    private WriteBehind mWriteBehind;
+    /**
+     * 正在加载的 key，同一个 key 的 getOrLoad 共用一次加载
+     */
+    private final ConcurrentHashMap<String, FutureTask<Object>> mLoading =
+            new ConcurrentHashMap<>();
+    /**
+     * 每个 key 最后提交的异步写入或删除，之后提交的同一个 key 的操作在它完成后执行
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<?>> mKeyTails =
+            new ConcurrentHashMap<>();
+    private final AsyncRunner mAsync;
+    private final String mInstanceKey;
+    private final Codec mCodec;
+    private final int mCompressThreshold;
+    /**
+     * 内存缓存是否保存所有解码后的对象，见 {@link Builder#shareDecodedObjects}
+     */
+    private final boolean mShareObjects;
+    private ExpirySweeper mSweeper;
+    private final StatsRecorder mStats = new StatsRecorder();
 
     public static AppCache get(Context ctx) {
         return get(ctx, "AppCache");
@@ -65,480 +127,1694 @@ public final class  AppCache {
     }
 
     public static AppCache get(File cacheDir, long maxSize, int maxCount) {
-        AppCache manager = mInstanceMap.get(cacheDir.getAbsoluteFile() + myPid());
-        if (manager == null) {
-            manager = new AppCache(cacheDir, maxSize, maxCount);
-            mInstanceMap.put(cacheDir.getAbsolutePath() + myPid(), manager);
-        }
-        return manager;
+        return get(cacheDir, maxSize, maxCount, 0, 0);
+    }
+
+    /**
+     * 获取带内存缓存的实例，命中内存时不再读取磁盘
+     *
+     * @param memorySize  内存缓存的最大字节数，0 表示不使用内存缓存
+     * @param memoryCount 内存缓存的最大条数，0 表示不使用内存缓存
+     */
+    public static AppCache get(File cacheDir, long maxSize, int maxCount,
+                               long memorySize, int memoryCount) {
+        return new Builder(cacheDir)
+                .maxSize(maxSize)
+                .maxCount(maxCount)
+                .memory(memorySize, memoryCount)
+                .build();
     }
 
     private static String myPid() {
         return "_" + android.os.Process.myPid();
     }
 
-    private AppCache(File cacheDir, long maxSize, int maxCount) {
+    private AppCache(Builder builder, String instanceKey) {
+        mInstanceKey = instanceKey;
+        mCodec = builder.codec;
+        mCompressThreshold = builder.compressThreshold;
+        mShareObjects = builder.shareDecodedObjects;
+        File cacheDir = builder.cacheDir;
         if (!cacheDir.exists() && !cacheDir.mkdirs()) {
             throw new RuntimeException("can't make dirs in "
                     + cacheDir.getAbsolutePath());
         }
-        mCache = new Manager(cacheDir, maxSize, maxCount);
+        if (builder.logStructured) {
+            mCache = new LogStore(cacheDir, builder.maxSize, builder.maxCount, mStats,
+                    builder.evictionPolicy);
+        } else {
+            mCache = new Manager(cacheDir, builder.maxSize, builder.maxCount, mStats,
+                    builder.evictionPolicy, builder.shardLevels, builder.multiProcess);
+        }
+        if (builder.memorySize > 0 && builder.memoryCount > 0) {
+            mMemory = new MemoryCache(builder.memorySize, builder.memoryCount);
+        }
+        if (builder.offHeapSize > 0) {
+            mOffHeap = new OffHeapCache(builder.offHeapSize);
+        }
+        if (builder.maxPendingWrites > 0) {
+            mWriteBehind = new WriteBehind(builder.maxPendingWrites, builder.flushDelayMillis,
+                    this::writeEntry);
+        }
+        if (builder.expirySweep) {
+            mSweeper = new ExpirySweeper();
+            // 启动前写入、之后还没读到的数据由存储引擎在加载索引后交给时间轮
+            mCache.setExpiryListener(mSweeper::scheduleStored);
+        }
+        mAsync = new AsyncRunner(builder.asyncExecutor != null
+                ? builder.asyncExecutor : AsyncRunner.defaultExecutor(), builder.maxInFlight);
     }
 
-    private static class Utils {
-        private static final int STR_LEN = 2;
-        private static final String STR_START_WITH = "0";
-        private static final int THOUSAND = 1000;
-        private static final int STAND_LEN = 13;
+    /**
+     * 磁盘缓存的淘汰策略
+     */
+    public enum EvictionPolicy {
+        /**
+         * 淘汰最久未使用的数据
+         */
+        LRU,
+        /**
+         * W-TinyLFU：新数据先进入占 1% 的 LRU 窗口区，溢出后和主区中最久未使用的数据比较估计的访问频率，
+         * 频率低的一方被淘汰。一次性扫描大量 key 时不会冲掉经常访问的数据；
+         * 访问频率只保存在内存中，重启后重新统计
+         */
+        TINY_LFU
+    }
 
-       /**
-        * 判断缓存的String数据是否到期
-        * @return true：到期了 false：还没有到期
-        */
-       private static boolean isDue(String str) {
-           return isDue(str.getBytes());
-       }
+    /**
+     * 缓存配置，同一个目录只会创建一个实例，已创建过时返回已有的实例
+     */
+    public static final class Builder {
+        private final File cacheDir;
+        private long maxSize = MAX_SIZE;
+        private int maxCount = MAX_COUNT;
+        private long memorySize;
+        private int memoryCount;
+        private long offHeapSize;
+        private boolean shareDecodedObjects;
+        private boolean logStructured;
+        private int maxPendingWrites;
+        private long flushDelayMillis;
+        private Codec codec = JAVA_CODEC;
+        private int compressThreshold;
+        private boolean expirySweep = true;
+        private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+        private int shardLevels;
+        private boolean multiProcess;
+        private Executor asyncExecutor;
+        private int maxInFlight = AsyncRunner.DEFAULT_MAX_IN_FLIGHT;
+
+        public Builder(File cacheDir) {
+            this.cacheDir = cacheDir;
+        }
+
+        public Builder maxSize(long maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        public Builder maxCount(int maxCount) {
+            this.maxCount = maxCount;
+            return this;
+        }
 
         /**
-         * 判断缓存的byte数据是否到期
-         * @return true：到期了 false：还没有到期
+         * @param memorySize  内存缓存的最大字节数，0 表示不使用内存缓存
+         * @param memoryCount 内存缓存的最大条数，0 表示不使用内存缓存
          */
-        private static boolean isDue(byte[] data) {
-            String[] str = getDateInfoFromDate(data);
-            if (str != null && str.length == STR_LEN) {
-                String saveTimeStr = str[0];
-                while (saveTimeStr.startsWith(STR_START_WITH)) {
-                    saveTimeStr = saveTimeStr
-                            .substring(1, saveTimeStr.length());
-                }
-                long saveTime = Long.valueOf(saveTimeStr);
-                long deleteAfter = Long.valueOf(str[1]);
-                return System.currentTimeMillis() > saveTime + deleteAfter * THOUSAND;
-            }
-            return false;
+        public Builder memory(long memorySize, int memoryCount) {
+            this.memorySize = memorySize;
+            this.memoryCount = memoryCount;
+            return this;
         }
 
-       private static String newStringWithDateInfo(int second, String strInfo) {
-           return createDateInfo(second) + strInfo;
-       }
+        /**
+         * 默认内存缓存只保存不可变的解码结果（字符串、基本类型的包装类、枚举），其他对象每次读取重新解码，
+         * 调用方修改返回的对象不会影响缓存；开启后所有解码后的对象都放入内存缓存，多次读取返回同一个实例，
+         * 调用方不能修改
+         */
+        public Builder shareDecodedObjects(boolean share) {
+            this.shareDecodedObjects = share;
+            return this;
+        }
 
-        private static byte[] newByteArrayWithDateInfo(int second, byte[] data2) {
-            byte[] data1 = createDateInfo(second).getBytes();
-            byte[] retData = new byte[data1.length + data2.length];
-            System.arraycopy(data1, 0, retData, 0, data1.length);
-            System.arraycopy(data2, 0, retData, data1.length, data2.length);
-            return retData;
+        /**
+         * 在内存缓存和磁盘之间加一层堆外缓存，存放原始数据，不占用堆内存；按 1MB 为单位申请直接内存，
+         * 单条数据（包括 key）超过 1MB 时不放入
+         *
+         * @param size 堆外缓存的最大字节数，0 表示不使用
+         */
+        public Builder offHeap(long size) {
+            this.offHeapSize = size;
+            return this;
         }
 
-       private static String clearDateInfo(String strInfo) {
-           if (strInfo != null && hasDateInfo(strInfo.getBytes())) {
-               strInfo = strInfo.substring(strInfo.indexOf(M_SEPARATOR) + 1,
-                       strInfo.length());
-           }
-           return strInfo;
-       }
+        /**
+         * 使用日志结构的存储引擎，所有数据追加写入少量段文件，适合大量的小数据
+         */
+        public Builder logStructured(boolean logStructured) {
+            this.logStructured = logStructured;
+            return this;
+        }
+
+        /**
+         * 开启延迟写入：put 时只放入内存队列，由后台线程批量写入磁盘，同一个 key 只写入最后一次的数据
+         *
+         * @param maxPendingWrites 队列中最多等待写入的 key 数量，队列满时 put 会等待
+         * @param flushDelayMillis 每批写入前等待的时间，用来合并短时间内的重复写入
+         */
+        public Builder writeBehind(int maxPendingWrites, long flushDelayMillis) {
+            this.maxPendingWrites = maxPendingWrites;
+            this.flushDelayMillis = flushDelayMillis;
+            return this;
+        }
 
-        private static byte[] clearDateInfo(byte[] data) {
-            if (hasDateInfo(data)) {
-                return copyOfRange(data, indexOf(data, M_SEPARATOR) + 1,
-                        data.length);
+        /**
+         * 对象默认使用的编码方式，默认为 {@link #JAVA_CODEC}
+         */
+        public Builder codec(Codec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * 写入磁盘时压缩不小于 threshold 字节的数据，压缩后没有变小时保存原始数据；读取时自动解压，
+         * 缓存的大小限制按压缩后的大小计算
+         *
+         * @param threshold 压缩阈值，单位：字节；0 表示不压缩
+         */
+        public Builder compress(int threshold) {
+            this.compressThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * 是否在后台定时删除已到期的数据，默认开启；关闭后到期的数据只在读取时删除
+         */
+        public Builder expirySweep(boolean expirySweep) {
+            this.expirySweep = expirySweep;
+            return this;
+        }
+
+        /**
+         * 磁盘缓存的淘汰策略，默认为 {@link EvictionPolicy#LRU}；内存缓存始终使用 LRU
+         */
+        public Builder evictionPolicy(EvictionPolicy evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * 把缓存文件分散到多层子目录中，每层 256 个子目录，文件很多时目录的遍历、创建文件和删除更快；
+         * 日志结构的存储引擎不使用该配置
+         * <p>
+         * 之前平铺在缓存目录下的文件在访问时移入子目录；已经分层的目录改变层数时不会迁移
+         *
+         * @param levels 子目录的层数，0（默认，平铺）、1 或 2
+         */
+        public Builder shardLevels(int levels) {
+            if (levels < 0 || levels > 2) {
+                throw new IllegalArgumentException("shard levels must be in [0, 2]: " + levels);
             }
-            return data;
+            this.shardLevels = levels;
+            return this;
         }
 
-        private static boolean hasDateInfo(byte[] data) {
-            return data != null && data.length > 15 && data[13] == '-'
-                    && indexOf(data, M_SEPARATOR) > 14;
+        /**
+         * 多个进程共享同一个缓存目录时开启，各进程通过内存映射的索引文件共享缓存的大小、条数和访问时间，
+         * 启动时不用各自扫描目录，淘汰也只由写入的进程做一次；淘汰时对访问时间取样，近似 LRU，
+         * 不使用 {@link #evictionPolicy}。最多保存 262144 条，maxCount 更大时按该值限制；
+         * 日志结构的存储引擎不使用该配置
+         */
+        public Builder multiProcess(boolean multiProcess) {
+            this.multiProcess = multiProcess;
+            return this;
         }
 
-        private static String[] getDateInfoFromDate(byte[] data) {
-            if (hasDateInfo(data)) {
-                String saveDate = new String(copyOfRange(data, 0, 13));
-                String deleteAfter = new String(copyOfRange(data, 14,
-                        indexOf(data, M_SEPARATOR)));
-                return new String[]{saveDate, deleteAfter};
+        /**
+         * 异步方法使用的线程和同时执行的操作数，超出的操作排队等待，不阻塞调用方
+         *
+         * @param executor    执行异步操作的线程，null 表示使用虚拟线程，不支持虚拟线程时使用后台线程池
+         * @param maxInFlight 同时执行的最大操作数，默认 64
+         */
+        public Builder async(Executor executor, int maxInFlight) {
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
             }
-            return null;
+            this.asyncExecutor = executor;
+            this.maxInFlight = maxInFlight;
+            return this;
         }
 
-        private static int indexOf(byte[] data, char c) {
-            for (int i = 0; i < data.length; i++) {
-                if (data[i] == c) {
-                    return i;
-                }
+        public AppCache build() {
+            String instanceKey = cacheDir.getAbsolutePath() + myPid();
+            AppCache manager = mInstanceMap.get(instanceKey);
+            if (manager == null) {
+                // 多个线程同时获取同一个目录时只创建一个实例
+                manager = mInstanceMap.computeIfAbsent(instanceKey,
+                        key -> new AppCache(this, key));
             }
-            return -1;
+            return manager;
         }
+    }
+
+    /**
+     * put byte array
+     *
+     * @param key   key value
+     * @param value data value
+     */
+    private void putByteArray(String key, byte[] value) {
+        putByteArray(key, value, Utils.NEVER_EXPIRE);
+    }
 
-        private static byte[] copyOfRange(byte[] original, int from, int to) {
-            int newLength = to - from;
-            if (newLength < 0) {
-                throw new IllegalArgumentException(from + " > " + to);
+    private void putByteArray(String key, byte[] value, int saveTime) {
+        putByteArray(key, value, Utils.newExpireTime(saveTime));
+    }
+
+    private void putByteArray(String key, byte[] value, long expireTime) {
+        writeByteArray(key, value, expireTime);
+        putMemory(key, MemoryCache.TYPE_BYTES, value, expireTime);
+        scheduleExpiry(key, expireTime);
+    }
+
+    private void writeByteArray(String key, byte[] value, long expireTime) {
+        putOffHeap(key, value, expireTime);
+        try {
+            if (mWriteBehind != null) {
+                mWriteBehind.put(key, new WriteBehind.PendingWrite(value, expireTime));
+            } else {
+                writeEntry(key, value, expireTime);
             }
-            byte[] copy = new byte[newLength];
-            System.arraycopy(original, from, copy, 0,
-                    Math.min(original.length - from, newLength));
-            return copy;
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+    }
 
-        private static final char M_SEPARATOR = ' ';
+    /**
+     * 写入磁盘，数据不小于压缩阈值且压缩后更小时保存压缩后的数据
+     */
+    private void writeEntry(String key, byte[] value, long expireTime) throws IOException {
+        Sample sample = mStats.start(Operation.PUT);
+        try {
+            StoredEntry entry = newStoredEntry(key, value, expireTime);
+            mCache.write(key, entry.header, entry.value);
+            mStats.bytesWritten.add(Header.SIZE + entry.value.length);
+            sample.outcome = Outcome.WRITTEN;
+        } catch (IOException e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.finish();
+        }
+    }
 
-        private static String createDateInfo(int second) {
-            StringBuilder currentTime = new StringBuilder(System.currentTimeMillis() + "");
-            while (currentTime.length() < STAND_LEN) {
-                currentTime.insert(0, STR_START_WITH);
+    private StoredEntry newStoredEntry(String key, byte[] value, long expireTime)
+            throws IOException {
+        int flags = 0;
+        byte[] stored = value;
+        if (mCompressThreshold > 0 && value.length >= mCompressThreshold) {
+            byte[] compressed = Utils.compress(value);
+            if (compressed.length < value.length) {
+                flags = Header.FLAG_DEFLATE;
+                stored = compressed;
             }
-            return currentTime + "-" + second + M_SEPARATOR;
         }
+        return new StoredEntry(key, Header.encode(flags, expireTime, stored), stored);
+    }
+
+    /**
+     * @return 还在延迟写入队列中、没有到期的数据
+     */
+    private byte[] getPending(String key) {
+        if (mWriteBehind == null) {
+            return null;
+        }
+        WriteBehind.PendingWrite write = mWriteBehind.get(key);
+        return write != null && !Utils.isDue(write.expireTime) ? write.value : null;
+    }
+
+    private byte[] getByteArray(String key) {
+        Sample sample = mStats.start(Operation.GET_BYTE_ARRAY);
+        try {
+            return readByteArray(key, sample);
+        } finally {
+            sample.finish();
+        }
+    }
 
-        private static byte[] bitmap2Bytes(Bitmap bm) {
-            if (bm == null) {
+    /**
+     * @param sample 记录这次读取的结果
+     */
+    private byte[] readByteArray(String key, Sample sample) {
+        Object cached = getMemory(key, MemoryCache.TYPE_BYTES);
+        if (cached != null) {
+            sample.hit();
+            return (byte[]) cached;
+        }
+        byte[] pending = getPending(key);
+        if (pending != null) {
+            sample.hit();
+            return pending;
+        }
+        byte[] offHeap = getOffHeap(key);
+        if (offHeap != null) {
+            sample.hit();
+            return offHeap;
+        }
+        Record record = null;
+        boolean removeFile = false;
+        try {
+            record = mCache.open(key);
+            if (record == null) {
+                return null;
+            }
+            mStats.bytesRead.add(record.length);
+            Header header = Header.read(record);
+            if (header == null) {
+                return sample.legacy(getLegacyByteArray(key, record));
+            }
+            if (Utils.isDue(header.expireTime)) {
+                sample.expired();
+                removeFile = true;
                 return null;
             }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
-            return baos.toByteArray();
+            byte[] value = header.readValue(record);
+            putMemory(key, MemoryCache.TYPE_BYTES, value, header.expireTime);
+            putOffHeap(key, value, header.expireTime);
+            scheduleExpiry(key, header.expireTime);
+            sample.hit();
+            return value;
+        } catch (Exception e) {
+            e.printStackTrace();
+            sample.fail(e);
+            removeFile = e instanceof CorruptEntryException;
+            return null;
+        } finally {
+            if (record != null) {
+                try {
+                    record.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (removeFile) {
+                remove(key);
+            }
         }
+    }
 
-       private static Bitmap bytes2Bitmap(byte[] b) {
-           if (b.length == 0) {
-               return null;
-           }
-           return BitmapFactory.decodeByteArray(b, 0, b.length);
-       }
+    /**
+     * 把输入流中的数据直接写入缓存文件，不会整个读到内存中；写完后才计入缓存大小，数据不压缩
+     *
+     * @param saveTime 保存的时间，单位：秒；-1 表示一直保存
+     * @return 写入的字节数
+     */
+    public long putStream(String key, InputStream in, int saveTime) throws IOException {
+        long expireTime = saveTime != -1 ? Utils.newExpireTime(saveTime) : Utils.NEVER_EXPIRE;
+        if (mMemory != null) {
+            mMemory.remove(key);
+        }
+        if (mOffHeap != null) {
+            mOffHeap.remove(key);
+        }
+        if (mWriteBehind != null) {
+            // 避免之后写入的旧数据覆盖流中的数据
+            mWriteBehind.remove(key);
+        }
+        Sample sample = mStats.start(Operation.PUT);
+        try {
+            long length = mCache.writeStream(key, Header.encode(0, expireTime, 0, 0), in);
+            mStats.bytesWritten.add(Header.SIZE + length);
+            sample.outcome = Outcome.WRITTEN;
+            scheduleExpiry(key, expireTime);
+            return length;
+        } catch (IOException e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.finish();
+        }
+    }
 
-       private static Bitmap drawable2Bitmap(Drawable drawable) {
-           if (drawable == null) {
-               return null;
-           }
-           //取 drawable 的长宽
-           int w = drawable.getIntrinsicWidth();
-           int h = drawable.getIntrinsicHeight();
-           //取 drawable 的颜色格式
-           Bitmap.Config config = drawable.getOpacity() != PixelFormat.OPAQUE ? Bitmap.Config.ARGB_8888
-                   : Bitmap.Config.RGB_565;
-           //建立对应 bitmap
-           Bitmap bitmap = Bitmap.createBitmap(w, h, config);
-           //建立对应 bitmap 的画布
-           Canvas canvas = new Canvas(bitmap);
-           drawable.setBounds(0, 0, w, h);
-           //把 drawable 内容画到画布中
-           drawable.draw(canvas);
-           return bitmap;
-       }
+    /**
+     * 以流的方式读取数据，只读取文件头判断是否到期，使用完后需要关闭
+     *
+     * @return 不存在或已到期时返回 null
+     */
+    public InputStream openInputStream(String key) throws IOException {
+        ReadableByteChannel channel = openChannel(key);
+        return channel != null ? Channels.newInputStream(channel) : null;
+    }
 
-       private static Drawable bitmap2Drawable(Bitmap bm) {
-           if (bm == null) {
-               return null;
-           }
-           return new BitmapDrawable(Resources.getSystem(), bm);
-       }
+    /**
+     * 以 channel 的方式读取数据，只读取文件头判断是否到期，使用完后需要关闭
+     *
+     * @return 不存在或已到期时返回 null
+     */
+    public ReadableByteChannel openChannel(String key) throws IOException {
+        Object cached = getMemory(key, MemoryCache.TYPE_BYTES);
+        if (cached == null) {
+            cached = getPending(key);
+        }
+        if (cached != null) {
+            return Channels.newChannel(new ByteArrayInputStream((byte[]) cached));
+        }
+        Record record = mCache.open(key);
+        if (record == null) {
+            return null;
+        }
+        boolean opened = false;
+        try {
+            Header header = Header.read(record);
+            if (header == null) {
+                byte[] value = getLegacyByteArray(key, record);
+                return value != null
+                        ? Channels.newChannel(new ByteArrayInputStream(value)) : null;
+            }
+            if (Utils.isDue(header.expireTime)) {
+                record.close();
+                remove(key);
+                return null;
+            }
+            scheduleExpiry(key, header.expireTime);
+            if (header.isCompressed()) {
+                // 压缩的数据不会太大，整个读出后校验再解压
+                return Channels.newChannel(new ByteArrayInputStream(header.readValue(record)));
+            }
+            ReadableByteChannel channel = record.newChannel(header.size);
+            opened = true;
+            if (header.newVerifier() == null) {
+                return channel;
+            }
+            // 读到末尾时校验
+            return Channels.newChannel(
+                    header.verifying(Channels.newInputStream(channel), () -> remove(key)));
+        } catch (CorruptEntryException e) {
+            remove(key);
+            throw e;
+        } finally {
+            if (!opened) {
+                record.close();
+            }
+        }
     }
 
     /**
-     * put byte array
+     * 读取 byte 数据，较大的数据通过内存映射读取，不会复制到堆内存中；
+     * 映射的数据不做校验，只有访问到的部分才会从磁盘读入，需要校验时使用 {@link #getByteBuffer(String, boolean)}；
+     * 数据在写入磁盘后才替换旧文件，崩溃不会留下写了一半的数据，不校验时只是发现不了磁盘上的损坏
      *
-     * @param key   key value
-     * @param value data value
+     * @return 只读的 ByteBuffer；不存在或已到期时返回 null
      */
-    private void putByteArray(String key, byte[] value) {
-        File file = mCache.newFile(key);
-        FileOutputStream out = null;
+    public ByteBuffer getByteBuffer(String key) {
+        return getByteBuffer(key, false);
+    }
+
+    /**
+     * @param verifyMapped 校验映射的数据，会把整个文件读入内存；较小的数据读取时总是校验
+     * @return 只读的 ByteBuffer；不存在、已到期或校验失败时返回 null
+     */
+    public ByteBuffer getByteBuffer(String key, boolean verifyMapped) {
+        Sample sample = mStats.start(Operation.GET_BYTE_ARRAY);
+        Object cached = getMemory(key, MemoryCache.TYPE_BYTES);
+        if (cached != null) {
+            sample.hit();
+            sample.finish();
+            return ByteBuffer.wrap((byte[]) cached).asReadOnlyBuffer();
+        }
+        byte[] pending = getPending(key);
+        if (pending != null) {
+            sample.hit();
+            sample.finish();
+            return ByteBuffer.wrap(pending).asReadOnlyBuffer();
+        }
+        byte[] offHeap = getOffHeap(key);
+        if (offHeap != null) {
+            sample.hit();
+            sample.finish();
+            return ByteBuffer.wrap(offHeap).asReadOnlyBuffer();
+        }
+        Record record = null;
+        boolean removeFile = false;
         try {
-            out = new FileOutputStream(file);
-            out.write(value);
+            record = mCache.open(key);
+            if (record == null) {
+                return null;
+            }
+            mStats.bytesRead.add(record.length);
+            Header header = Header.read(record);
+            if (header == null) {
+                byte[] value = sample.legacy(getLegacyByteArray(key, record));
+                return value != null ? ByteBuffer.wrap(value).asReadOnlyBuffer() : null;
+            }
+            if (Utils.isDue(header.expireTime)) {
+                sample.expired();
+                removeFile = true;
+                return null;
+            }
+            scheduleExpiry(key, header.expireTime);
+            sample.hit();
+            if (header.length >= MAP_THRESHOLD && !header.isCompressed()
+                    && header.size + header.length <= record.length) {
+                // 关闭文件后映射依然有效
+                ByteBuffer mapped = record.channel.map(FileChannel.MapMode.READ_ONLY,
+                        record.offset + header.size, header.length);
+                if (verifyMapped) {
+                    header.verify(mapped);
+                }
+                return mapped;
+            }
+            byte[] value = header.readValue(record);
+            putMemory(key, MemoryCache.TYPE_BYTES, value, header.expireTime);
+            putOffHeap(key, value, header.expireTime);
+            return ByteBuffer.wrap(value).asReadOnlyBuffer();
         } catch (Exception e) {
             e.printStackTrace();
+            sample.fail(e);
+            removeFile = e instanceof CorruptEntryException;
+            return null;
         } finally {
-            if (out != null) {
+            sample.finish();
+            if (record != null) {
                 try {
-                    out.flush();
-                    out.close();
+                    record.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-            mCache.put(file);
+            if (removeFile) {
+                remove(key);
+            }
         }
     }
 
-    private void putByteArray(String key, byte[] value, int saveTime) {
-        putByteArray(key, Utils.newByteArrayWithDateInfo(saveTime, value));
-    }
+    /**
+     * 读取旧版本 ASCII 时间头格式的文件，未到期时按新格式重新写入
+     */
+    private byte[] getLegacyByteArray(String key, Record record) throws IOException {
+        byte[] byteArray = new byte[(int) record.length];
+        record.readFully(ByteBuffer.wrap(byteArray), 0);
+        record.close();
+        long expireTime = Utils.getExpireTime(byteArray);
+        if (Utils.isDue(expireTime)) {
+            remove(key);
+            return null;
+        }
+        byte[] value = Utils.clearDateInfo(byteArray);
+        putByteArray(key, value, expireTime);
+        return value;
+    }
+
+    /**
+     * 保存 Serializable数据 到 缓存中
+     *
+     * @param key   保存的key
+     * @param value 保存的value
+     */
+    public void putSerializable(String key, Serializable value) {
+        putSerializable(key, value, -1);
+    }
+
+    /**
+     * 保存 Serializable数据到 缓存中
+     *
+     * @param key      保存的key
+     * @param value    保存的value
+     * @param saveTime 保存的时间，单位：秒
+     */
+    private void putSerializable(String key, Serializable value, int saveTime) {
+        putObject(key, value, saveTime);
+    }
+
+    public <T extends Serializable> T getSerializable(String key) {
+        return cast(getObject(key));
+    }
+
+    /**
+     * 缓存中只保存编码后的数据，读取时无法检查类型，由调用方按写入时的类型读取；
+     * 类型不符时调用方使用返回值时抛出 ClassCastException
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value) {
+        return (T) value;
+    }
+
+    /**
+     * 批量保存 Serializable 数据：整批只做一次淘汰，文件并行写入；开启延迟写入时逐个加入写入队列
+     *
+     * @param saveTime 保存的时间，单位：秒；-1 表示一直保存
+     */
+    public void putAll(Map<String, ? extends Serializable> values, int saveTime) {
+        long expireTime = saveTime != -1 ? Utils.newExpireTime(saveTime) : Utils.NEVER_EXPIRE;
+        List<StoredEntry> entries = new ArrayList<>(values.size());
+        Map<String, byte[]> written = new LinkedHashMap<>();
+        for (Entry<String, ? extends Serializable> value : values.entrySet()) {
+            String key = value.getKey();
+            try {
+                byte[] data = encode(value.getValue(), mCodec);
+                if (mWriteBehind != null) {
+                    putByteArray(key, data, expireTime);
+                    continue;
+                }
+                entries.add(newStoredEntry(key, data, expireTime));
+                written.put(key, data);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<Sample> samples = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            samples.add(mStats.start(Operation.PUT));
+        }
+        IOException error = null;
+        try {
+            mCache.writeAll(entries);
+        } catch (IOException e) {
+            e.printStackTrace();
+            error = e;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Sample sample = samples.get(i);
+            if (error != null) {
+                sample.fail(error);
+            } else {
+                mStats.bytesWritten.add(Header.SIZE + entries.get(i).value.length);
+                sample.outcome = Outcome.WRITTEN;
+            }
+            sample.finish();
+        }
+        for (Entry<String, byte[]> entry : written.entrySet()) {
+            putMemory(entry.getKey(), MemoryCache.TYPE_BYTES, entry.getValue(), expireTime);
+            putOffHeap(entry.getKey(), entry.getValue(), expireTime);
+            scheduleExpiry(entry.getKey(), expireTime);
+        }
+    }
+
+    /**
+     * 批量读取 Serializable 数据，内存中没有的 key 并行读取文件
+     *
+     * @return 命中的数据，不包含不存在、已到期或读取失败的 key
+     */
+    public <T extends Serializable> Map<String, T> getAll(Collection<String> keys) {
+        Map<String, T> hits = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String key : new LinkedHashSet<>(keys)) {
+            Object cached = getMemory(key, MemoryCache.TYPE_OBJECT);
+            if (cached != null) {
+                // getObject 会记录这次命中
+                hits.put(key, cast(getObject(key, cached)));
+            } else {
+                misses.add(key);
+            }
+        }
+        List<Callable<T>> tasks = new ArrayList<>(misses.size());
+        for (String key : misses) {
+            tasks.add(() -> cast(getObject(key)));
+        }
+        try {
+            List<T> values = IoExecutor.invokeAll(tasks);
+            for (int i = 0; i < values.size(); i++) {
+                if (values.get(i) != null) {
+                    hits.put(misses.get(i), values.get(i));
+                }
+            }
+        } catch (Exception e) {
+            // getObject 不会抛出 IOException，只有 RuntimeException 会到这里
+            e.printStackTrace();
+        }
+        return hits;
+    }
+
+    /**
+     * getOrLoad 未命中时加载数据
+     */
+    public interface Loader<T extends Serializable> {
+        /**
+         * @return 加载到的数据；返回 null 时不保存
+         */
+        T load(String key) throws Exception;
+    }
+
+    /**
+     * 读取 key 对应的数据，未命中时调用 loader 加载并保存；同一个 key 同时只有一个线程在加载，
+     * 其他未命中的线程等待这次加载的结果
+     *
+     * @param saveTime 保存的时间，单位：秒；-1 表示一直保存
+     * @return 缓存或加载到的数据
+     * @throws ExecutionException loader 抛出异常时，所有等待这次加载的线程都会收到
+     */
+    public <T extends Serializable> T getOrLoad(String key, Loader<T> loader, int saveTime)
+            throws ExecutionException {
+        T value = getSerializable(key);
+        if (value != null) {
+            return value;
+        }
+        FutureTask<Object> task = new FutureTask<>(() -> {
+            // 上一次加载可能刚好在未命中之后完成
+            Object cached = getObject(key);
+            if (cached != null) {
+                return cached;
+            }
+            T loaded = loader.load(key);
+            if (loaded != null) {
+                putSerializable(key, loaded, saveTime);
+            }
+            return loaded;
+        });
+        FutureTask<Object> loading = mLoading.putIfAbsent(key, task);
+        if (loading == null) {
+            loading = task;
+            try {
+                task.run();
+            } finally {
+                mLoading.remove(key, task);
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return cast(loading.get());
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 异步读取 Serializable 数据，在之前提交的同一个 key 的异步写入和删除完成后执行
+     *
+     * @return 读取的结果，不存在或已到期时为 null
+     */
+    public <T extends Serializable> CompletableFuture<T> getAsync(String key) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        runAfter(mKeyTails.get(key), () -> mAsync.submit(() -> {
+            try {
+                result.complete(getSerializable(key));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }));
+        return result;
+    }
+
+    public CompletableFuture<Void> putAsync(String key, Serializable value) {
+        return putAsync(key, value, -1);
+    }
+
+    /**
+     * 异步保存 Serializable 数据，同一个 key 的异步写入和删除按提交顺序执行；和同步方法一样，
+     * 写入磁盘失败时只打印异常
+     *
+     * @param saveTime 保存的时间，单位：秒；-1 表示一直保存
+     */
+    public CompletableFuture<Void> putAsync(String key, Serializable value, int saveTime) {
+        return submitOrdered(key, () -> {
+            putSerializable(key, value, saveTime);
+            return null;
+        });
+    }
+
+    /**
+     * 异步移除某个key，和同一个 key 的异步写入按提交顺序执行
+     *
+     * @return 是否移除成功
+     */
+    public CompletableFuture<Boolean> removeAsync(String key) {
+        return submitOrdered(key, () -> remove(key));
+    }
+
+    /**
+     * 在同一个 key 上一次提交的写入或删除完成后执行 task，并成为该 key 最后提交的操作
+     */
+    private <T> CompletableFuture<T> submitOrdered(String key, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<?> previous = mKeyTails.put(key, result);
+        runAfter(previous, () -> mAsync.submit(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                mKeyTails.remove(key, result);
+            }
+        }));
+        return result;
+    }
+
+    /**
+     * previous 完成后（包括异常完成）执行 start，previous 为 null 时直接执行
+     */
+    private static void runAfter(CompletableFuture<?> previous, Runnable start) {
+        if (previous == null) {
+            start.run();
+        } else {
+            previous.whenComplete((value, error) -> start.run());
+        }
+    }
+
+    /**
+     * 对象的编码方式。除 Java 序列化外，编码后的数据开头会写入一个字节的 id，读取时按 id 选择解码方式，
+     * 所以同一个缓存中可以混用不同的编码
+     */
+    public interface Codec {
+        /**
+         * @return 编码方式的 id，自定义编码取值 1~127；Java 序列化的数据以 0xACED 开头，不需要 id
+         */
+        int id();
+
+        /**
+         * 把 value 编码后写入 out
+         *
+         * @return 不支持该类型时返回 false，已写入的数据会被丢弃，改用 Java 序列化
+         */
+        boolean encode(Object value, OutputStream out) throws IOException;
+
+        Object decode(InputStream in) throws IOException;
+    }
+
+    /**
+     * 注册自定义编码，读取使用该编码写入的数据前需要先注册
+     */
+    public static void registerCodec(Codec codec) {
+        int id = codec.id();
+        if (id < 1 || id > 127) {
+            throw new IllegalArgumentException("codec id must be in [1, 127]: " + id);
+        }
+        if (!mCodecs.compareAndSet(id, null, codec) && mCodecs.get(id) != codec) {
+            throw new IllegalArgumentException("codec id already registered: " + id);
+        }
+    }
+
+    private byte[] encode(Object value, Codec codec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (codec.id() != JAVA_CODEC.id()) {
+            // 确保本进程中可以读取自己写入的数据
+            registerCodec(codec);
+            out.write(codec.id());
+            if (codec.encode(value, out)) {
+                return out.toByteArray();
+            }
+            out.reset();
+        }
+        JAVA_CODEC.encode(value, out);
+        return out.toByteArray();
+    }
+
+    private Object readObject(byte[] data) throws IOException {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        if (data[0] == (byte) 0xAC) {
+            return JAVA_CODEC.decode(new ByteArrayInputStream(data));
+        }
+        Codec codec = data[0] > 0 ? mCodecs.get(data[0]) : null;
+        if (codec == null) {
+            throw new IOException("unknown codec " + data[0]);
+        }
+        return codec.decode(new ByteArrayInputStream(data, 1, data.length - 1));
+    }
+
+    /**
+     * Java 序列化，兼容之前版本写入的数据
+     */
+    private static final class JavaCodec implements Codec {
+        @Override
+        public int id() {
+            return 0;
+        }
+
+        @Override
+        public boolean encode(Object value, OutputStream out) throws IOException {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(value);
+            oos.flush();
+            return true;
+        }
+
+        @Override
+        public Object decode(InputStream in) throws IOException {
+            ObjectInputStream ois = new ObjectInputStream(in);
+            try {
+                return ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * 紧凑的二进制编码，支持 null、基本类型的包装类、String、byte[] 以及由这些类型组成的 List、Set、Map；
+     * 整数按变长编码，解码后的集合分别为 ArrayList、LinkedHashSet、LinkedHashMap
+     */
+    private static final class BinaryCodec implements Codec {
+        private static final int NULL = 0;
+        private static final int TRUE = 1;
+        private static final int FALSE = 2;
+        private static final int BYTE = 3;
+        private static final int SHORT = 4;
+        private static final int INT = 5;
+        private static final int LONG = 6;
+        private static final int FLOAT = 7;
+        private static final int DOUBLE = 8;
+        private static final int CHAR = 9;
+        private static final int STRING = 10;
+        private static final int BYTES = 11;
+        private static final int LIST = 12;
+        private static final int SET = 13;
+        private static final int MAP = 14;
+
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public boolean encode(Object value, OutputStream out) throws IOException {
+            DataOutputStream dataOut = new DataOutputStream(out);
+            boolean supported = write(dataOut, value);
+            dataOut.flush();
+            return supported;
+        }
+
+        /**
+         * @throws CorruptEntryException 数据不完整
+         */
+        @Override
+        public Object decode(InputStream in) throws IOException {
+            try {
+                return read(new DataInputStream(in));
+            } catch (EOFException e) {
+                throw new CorruptEntryException("truncated binary value");
+            }
+        }
+
+        private static boolean write(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) value);
+            } else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INT);
+                writeVarLong(out, zigzag((Integer) value));
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                writeVarLong(out, zigzag((Long) value));
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Character) {
+                out.writeByte(CHAR);
+                out.writeChar((Character) value);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeBytes(out, ((String) value).getBytes("UTF-8"));
+            } else if (value instanceof byte[]) {
+                out.writeByte(BYTES);
+                writeBytes(out, (byte[]) value);
+            } else if (value instanceof List || value instanceof Set) {
+                Collection<?> collection = (Collection<?>) value;
+                out.writeByte(value instanceof List ? LIST : SET);
+                writeVarLong(out, collection.size());
+                for (Object item : collection) {
+                    if (!write(out, item)) {
+                        return false;
+                    }
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                out.writeByte(MAP);
+                writeVarLong(out, map.size());
+                for (Entry<?, ?> entry : map.entrySet()) {
+                    if (!write(out, entry.getKey()) || !write(out, entry.getValue())) {
+                        return false;
+                    }
+                }
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private static Object read(DataInputStream in) throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case BYTE:
+                    return in.readByte();
+                case SHORT:
+                    return in.readShort();
+                case INT:
+                    return (int) unzigzag(readVarLong(in));
+                case LONG:
+                    return unzigzag(readVarLong(in));
+                case FLOAT:
+                    return in.readFloat();
+                case DOUBLE:
+                    return in.readDouble();
+                case CHAR:
+                    return in.readChar();
+                case STRING:
+                    return new String(readBytes(in), "UTF-8");
+                case BYTES:
+                    return readBytes(in);
+                case LIST:
+                case SET: {
+                    int size = readSize(in);
+                    Collection<Object> collection = tag == LIST
+                            ? new ArrayList<>(size) : new LinkedHashSet<>();
+                    for (int i = 0; i < size; i++) {
+                        collection.add(read(in));
+                    }
+                    return collection;
+                }
+                case MAP: {
+                    int size = readSize(in);
+                    Map<Object, Object> map = new LinkedHashMap<>();
+                    for (int i = 0; i < size; i++) {
+                        map.put(read(in), read(in));
+                    }
+                    return map;
+                }
+                default:
+                    throw new IOException("unknown tag " + tag);
+            }
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[readSize(in)];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private static int readSize(DataInputStream in) throws IOException {
+            long size = readVarLong(in);
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("bad size " + size);
+            }
+            return (int) size;
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        private static long readVarLong(DataInputStream in) throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+    }
+
+    void putBitmap(String key, Bitmap value) {
+        putByteArray(key, Utils.bitmap2Bytes(value));
+    }
+    /**
+     * 获取缓存文件
+     *
+     * @return value 缓存的文件；使用日志结构的存储引擎时返回 null
+     */
+    public File file(String key) {
+        File f = mCache.file(key);
+        if (f != null && f.exists()) {
+            return f;
+        }
+        return null;
+    }
+
+    /**
+     * 移除某个key
+     *
+     * @return 是否移除成功
+     */
+    public boolean remove(String key) {
+        if (mMemory != null) {
+            mMemory.remove(key);
+        }
+        if (mOffHeap != null) {
+            mOffHeap.remove(key);
+        }
+        if (mSweeper != null) {
+            mSweeper.cancel(key);
+        }
+        boolean removedPending = mWriteBehind != null && mWriteBehind.remove(key);
+        return mCache.remove(key) || removedPending;
+    }
+
+    /**
+     * 把延迟写入队列中的数据全部写入磁盘，未开启延迟写入时直接返回
+     */
+    public void flush() {
+        if (mWriteBehind != null) {
+            mWriteBehind.flush();
+        }
+    }
+
+    /**
+     * 写入所有等待中的数据并释放文件句柄，关闭后不能再使用该实例，需要重新通过 get 获取
+     */
+    public void close() {
+        if (mSweeper != null) {
+            mSweeper.stop();
+        }
+        flush();
+        mCache.close();
+        mInstanceMap.remove(mInstanceKey, this);
+    }
+
+    /**
+     * 到期时间索引：设置了保存时间的 key 按到期时间放进时间轮，由后台线程定时删除已到期的数据，
+     * 淘汰时就不会因为已经到期但还没被读到的数据挤掉有效的数据
+     * <p>
+     * 时间轮每格 {@link #TICK_MILLIS}，到期时间超过一圈的 key 放在对应的格子里等下一圈再检查。
+     * 存储引擎加载索引时给出的记录用 {@link StoredId} 表示，和 key 分开，到期时只从存储引擎中删除
+     */
+    private class ExpirySweeper implements Runnable {
+        private static final int WHEEL_SIZE = 512;
+        private static final long TICK_MILLIS = 1000;
+
+        /**
+         * 每格中的 key 及放入时的到期时间，与 expireTimes 中不一致的是已经被覆盖的旧记录
+         */
+        private final List<Map<Object, Long>> wheel = new ArrayList<>(WHEEL_SIZE);
+        /**
+         * 只在持有 this 时修改；读取不加锁，到期时间没变的 key 不用等锁
+         */
+        private final Map<Object, Long> expireTimes = new ConcurrentHashMap<>();
+        /**
+         * 下一个要检查的格子
+         */
+        private long cursorTick = System.currentTimeMillis() / TICK_MILLIS;
+        private ScheduledFuture<?> task;
+        private boolean stopped;
+
+        private ExpirySweeper() {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel.add(new HashMap<>());
+            }
+        }
+
+        /**
+         * 每次从磁盘读到设置了保存时间的数据都会调用，到期时间没变时不加锁直接返回
+         */
+        private void schedule(String key, long expireTime) {
+            Long scheduled = expireTimes.get(key);
+            if (expireTime == Utils.NEVER_EXPIRE ? scheduled == null
+                    : scheduled != null && scheduled == expireTime) {
+                return;
+            }
+            scheduleLocked(key, expireTime);
+        }
+
+        /**
+         * 存储引擎加载索引后对每条设置了到期时间的记录调用一次
+         */
+        private void scheduleStored(String id, long expireTime) {
+            scheduleLocked(new StoredId(id), expireTime);
+        }
+
+        private synchronized void scheduleLocked(Object key, long expireTime) {
+            if (expireTime == Utils.NEVER_EXPIRE) {
+                expireTimes.remove(key);
+                return;
+            }
+            Long scheduled = expireTimes.put(key, expireTime);
+            if (scheduled != null && scheduled == expireTime) {
+                return;
+            }
+            // 当前时间超过 expireTime 所在格子的末尾时才算到期
+            long tick = Math.max(expireTime / TICK_MILLIS + 1, cursorTick);
+            wheel.get((int) (tick % WHEEL_SIZE)).put(key, expireTime);
+            if (task == null && !stopped) {
+                task = SweepScheduler.INSTANCE.scheduleWithFixedDelay(this,
+                        TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void cancel(String key) {
+            expireTimes.remove(key);
+        }
 
-    private byte[] getByteArray(String key) {
-        RandomAccessFile raFile = null;
-        boolean removeFile = false;
-        try {
-            File file = mCache.get(key);
-            if (!file.exists()) {
-                return null;
+        private synchronized void clear() {
+            expireTimes.clear();
+            for (Map<Object, Long> bucket : wheel) {
+                bucket.clear();
             }
-            raFile = new RandomAccessFile(file, "r");
-            byte[] byteArray = new byte[(int) raFile.length()];
-            raFile.read(byteArray);
-            if (!Utils.isDue(byteArray)) {
-                return Utils.clearDateInfo(byteArray);
-            } else {
-                removeFile = true;
-                return null;
+        }
+
+        private synchronized void stop() {
+            stopped = true;
+            if (task != null) {
+                task.cancel(false);
+                task = null;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        } finally {
-            if (raFile != null) {
-                try {
-                    raFile.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        }
+
+        /**
+         * @return 取出已经到期的 key
+         */
+        private synchronized List<Object> pollExpired(long now) {
+            List<Object> expired = new ArrayList<>();
+            long nowTick = now / TICK_MILLIS;
+            // 停顿超过一圈时每个格子检查一次即可
+            long ticks = Math.min(nowTick - cursorTick + 1, WHEEL_SIZE);
+            for (long i = 0; i < ticks; i++) {
+                Iterator<Entry<Object, Long>> iterator =
+                        wheel.get((int) ((cursorTick + i) % WHEEL_SIZE)).entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Entry<Object, Long> entry = iterator.next();
+                    Long expireTime = expireTimes.get(entry.getKey());
+                    if (!entry.getValue().equals(expireTime)) {
+                        iterator.remove();
+                    } else if (expireTime < now) {
+                        iterator.remove();
+                        expireTimes.remove(entry.getKey());
+                        expired.add(entry.getKey());
+                    }
                 }
             }
-            if (removeFile) {
-                remove(key);
+            cursorTick = Math.max(cursorTick, nowTick + 1);
+            return expired;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Object expired : pollExpired(System.currentTimeMillis())) {
+                    if (expired instanceof StoredId) {
+                        // 没有读过的数据只在存储引擎中，同样在删除前检查文件头
+                        mCache.removeExpiredById(((StoredId) expired).id);
+                        continue;
+                    }
+                    String key = (String) expired;
+                    if (getPending(key) != null) {
+                        // 还没写入磁盘的新数据
+                        continue;
+                    }
+                    if (mMemory != null) {
+                        mMemory.removeIfDue(key);
+                    }
+                    if (mOffHeap != null) {
+                        mOffHeap.removeIfDue(key);
+                    }
+                    // 删除前检查文件头，期间被重新写入的数据不会被删除
+                    mCache.removeExpired(key);
+                }
+            } catch (Exception e) {
+                // 异常会让定时任务停止
+                e.printStackTrace();
             }
         }
     }
 
     /**
-     * 保存 Serializable数据 到 缓存中
-     *
-     * @param key   保存的key
-     * @param value 保存的value
+     * 存储引擎中记录的标识，见 {@link Store.ExpiryListener}
      */
-    public void putSerializable(String key, Serializable value) {
-        putSerializable(key, value, -1);
+    private static final class StoredId {
+        private final String id;
+
+        private StoredId(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StoredId && id.equals(((StoredId) o).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
     }
 
     /**
-     * 保存 Serializable数据到 缓存中
-     *
-     * @param key      保存的key
-     * @param value    保存的value
-     * @param saveTime 保存的时间，单位：秒
+     * 所有实例共用的到期清理线程
      */
-    private void putSerializable(String key, Serializable value, int saveTime) {
-        ByteArrayOutputStream bs;
-        ObjectOutputStream oos = null;
-        try {
-            bs = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(bs);
-            oos.writeObject(value);
-            byte[] data = bs.toByteArray();
-            if (saveTime != -1) {
-                putByteArray(key, data, saveTime);
-            } else {
-                putByteArray(key, data);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (oos != null) {
-                    oos.close();
+    private static final class SweepScheduler {
+        private static final ScheduledExecutorService INSTANCE =
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "AppCache-expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * 执行异步操作，同时执行的操作不超过 maxInFlight，超出的放入队列，由执行完的操作接着提交，
+     * 提交时不会阻塞
+     */
+    private static final class AsyncRunner {
+        private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+        private static Executor sharedDefault;
+
+        private final Executor executor;
+        private final int maxInFlight;
+        private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private AsyncRunner(Executor executor, int maxInFlight) {
+            this.executor = executor;
+            this.maxInFlight = maxInFlight;
+        }
+
+        /**
+         * @return 虚拟线程的 Executor；没有虚拟线程（Android、Java 21 之前）时使用按需创建的后台线程，
+         * 线程数受 maxInFlight 限制
+         */
+        private static synchronized Executor defaultExecutor() {
+            if (sharedDefault == null) {
+                try {
+                    Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                    sharedDefault = (Executor) method.invoke(null);
+                } catch (Exception e) {
+                    sharedDefault = Executors.newCachedThreadPool(
+                            IoExecutor.newThreadFactory("AppCache-async-"));
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+            return sharedDefault;
         }
-    }
 
-    public <T extends Serializable> T getSerializable(String key) {
-        byte[] data = getByteArray(key);
-        if (data != null) {
-            ByteArrayInputStream bs = null;
-            ObjectInputStream ois = null;
-            try {
-                bs = new ByteArrayInputStream(data);
-                ois = new ObjectInputStream(bs);
-                return (T) ois.readObject();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
-            } finally {
-                try {
-                    if (bs != null) {
-                        bs.close();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+        private void submit(Runnable task) {
+            pending.add(task);
+            drain();
+        }
+
+        private void drain() {
+            while (!pending.isEmpty()) {
+                int running = inFlight.get();
+                if (running >= maxInFlight) {
+                    // 正在执行的操作结束后会再次检查队列
+                    return;
+                }
+                if (!inFlight.compareAndSet(running, running + 1)) {
+                    continue;
+                }
+                Runnable task = pending.poll();
+                if (task == null) {
+                    inFlight.decrementAndGet();
+                    continue;
                 }
                 try {
-                    if (ois != null) {
-                        ois.close();
-                    }
-                } catch (IOException e) {
+                    executor.execute(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            inFlight.decrementAndGet();
+                            drain();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // executor 已经关闭，在当前线程执行，不让等待结果的调用方一直等下去
                     e.printStackTrace();
+                    inFlight.decrementAndGet();
+                    task.run();
                 }
             }
         }
-        return null;
+    }
 
+    private void scheduleExpiry(String key, long expireTime) {
+        // 删除前会检查文件头，改为永久保存的 key 不需要从时间轮中取消
+        if (mSweeper != null && expireTime != Utils.NEVER_EXPIRE) {
+            mSweeper.schedule(key, expireTime);
+        }
     }
 
+    /**
+     * 统计的操作类型
+     */
+    public enum Operation {
+        /**
+         * 读取 byte 数据，包括 getByteBuffer 以及图片
+         */
+        GET_BYTE_ARRAY,
+        GET_STRING,
+        /**
+         * 读取对象，包括 getList、getBoolean，耗时包含解码
+         */
+        GET_SERIALIZABLE,
+        /**
+         * 写入磁盘，开启延迟写入时在后台线程中统计
+         */
+        PUT,
+        /**
+         * 磁盘空间不足时淘汰一条数据
+         */
+        EVICT
+    }
 
-    void putBitmap(String key, Bitmap value) {
-        putByteArray(key, Utils.bitmap2Bytes(value));
+    public enum Outcome {
+        HIT,
+        /**
+         * 数据不存在
+         */
+        ABSENT,
+        EXPIRED,
+        DECODE_FAILURE,
+        /**
+         * 读写时出现异常
+         */
+        ERROR,
+        WRITTEN,
+        EVICTED
     }
+
     /**
-     * 获取缓存文件
-     *
-     * @return value 缓存的文件
+     * 统计事件的回调，用来把统计数据导出到其他监控系统
      */
-    public File file(String key) {
-        File f = mCache.newFile(key);
-        if (f.exists()) {
-            return f;
-        }
-        return null;
+    public interface StatsListener {
+        /**
+         * 在执行操作的线程中同步调用，可能持有缓存内部的锁，不能做耗时操作，也不能再调用 AppCache
+         *
+         * @param nanos 操作的耗时，单位：纳秒
+         * @param error outcome 为 ERROR 或 DECODE_FAILURE 时的异常，其他情况为 null
+         */
+        void onEvent(Operation operation, Outcome outcome, long nanos, Exception error);
     }
 
     /**
-     * 移除某个key
-     *
-     * @return 是否移除成功
+     * 获取统计数据的快照，计数从实例创建开始累计
      */
-    public boolean remove(String key) {
-        return mCache.remove(key);
+    public Stats stats() {
+        return mStats.snapshot();
     }
 
+    /**
+     * @param listener 为 null 时取消回调
+     */
+    public void setStatsListener(StatsListener listener) {
+        mStats.listener = listener;
+    }
 
     /**
-     * 缓存管理器
-     *
-     * @author 杨福海（michael） www.yangfuhai.com
-     * @version 1.0
-     */
-    private class Manager {
-        private final AtomicLong cacheSize;
-        private final AtomicInteger cacheCount;
-        private final long sizeLimit;
-        private final int countLimit;
-        private final Map<File, Long> lastUsageDates = new HashMap<>();
-        private File cacheDir;
-
-        private Manager(File cacheDir, long sizeLimit, int countLimit) {
-            this.cacheDir = cacheDir;
-            this.sizeLimit = sizeLimit;
-            this.countLimit = countLimit;
-            cacheSize = new AtomicLong();
-            cacheCount = new AtomicInteger();
-            calculateCacheSizeAndCacheCount();
-        }
-
-        /**
-         * 计算 cacheSize和cacheCount
-         */
-        private void calculateCacheSizeAndCacheCount() {
-            StartThread.start(() -> {
-                int size = 0;
-                int count = 0;
-                File[] cachedFiles = cacheDir.listFiles();
-                if (cachedFiles != null) {
-                    for (File cachedFile : cachedFiles) {
-                        size += Manager.this.calculateSize(cachedFile);
-                        count += 1;
-                        lastUsageDates.put(cachedFile,
-                                cachedFile.lastModified());
-                    }
-                    cacheSize.set(size);
-                    cacheCount.set(count);
-                }
-            });
+     * 统计数据的快照
+     */
+    public static final class Stats {
+        private final long[][] counts;
+        private final Latency[] latencies;
+        private final long bytesRead;
+        private final long bytesWritten;
+
+        Stats(long[][] counts, Latency[] latencies, long bytesRead, long bytesWritten) {
+            this.counts = counts;
+            this.latencies = latencies;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
         }
 
-        private void put(File file) {
-            int curCacheCount = cacheCount.get();
-            while (curCacheCount + 1 > countLimit) {
-                long freedSize = removeNext();
-                cacheSize.addAndGet(-freedSize);
+        public long count(Operation operation, Outcome outcome) {
+            return counts[operation.ordinal()][outcome.ordinal()];
+        }
 
-                curCacheCount = cacheCount.addAndGet(-1);
-            }
-            cacheCount.addAndGet(1);
+        /**
+         * @return 所有读取操作中命中的次数
+         */
+        public long hitCount() {
+            return readCount(Outcome.HIT);
+        }
 
-            long valueSize = calculateSize(file);
-            long curCacheSize = cacheSize.get();
-            while (curCacheSize + valueSize > sizeLimit) {
-                long freedSize = removeNext();
-                curCacheSize = cacheSize.addAndGet(-freedSize);
-            }
-            cacheSize.addAndGet(valueSize);
+        /**
+         * @return 所有读取操作中没有返回数据的次数，包括不存在、已到期、解码失败和出错
+         */
+        public long missCount() {
+            return readCount(Outcome.ABSENT) + readCount(Outcome.EXPIRED)
+                    + readCount(Outcome.DECODE_FAILURE) + readCount(Outcome.ERROR);
+        }
 
-            Long currentTime = System.currentTimeMillis();
-            if (file.setLastModified(currentTime)) {
-                lastUsageDates.put(file, currentTime);
-            }
+        public double hitRate() {
+            long total = hitCount() + missCount();
+            return total == 0 ? 1.0 : (double) hitCount() / total;
         }
 
-        private File get(String key) {
-            File file = newFile(key);
-            Long currentTime = System.currentTimeMillis();
-            if (file.setLastModified(currentTime)) {
-                lastUsageDates.put(file, currentTime);
-            }
+        public long evictionCount() {
+            return count(Operation.EVICT, Outcome.EVICTED);
+        }
+
+        /**
+         * @return 从磁盘读取的字节数，包括文件头
+         */
+        public long bytesRead() {
+            return bytesRead;
+        }
 
-            return file;
+        /**
+         * @return 写入磁盘的字节数，包括文件头，压缩过的数据按压缩后的大小计算
+         */
+        public long bytesWritten() {
+            return bytesWritten;
         }
 
-        private File newFile(String key) {
-            return new File(cacheDir, key.hashCode() + "");
+        public Latency latency(Operation operation) {
+            return latencies[operation.ordinal()];
         }
 
-        private boolean remove(String key) {
-            File image = get(key);
-            return image.delete();
+        private long readCount(Outcome outcome) {
+            return count(Operation.GET_BYTE_ARRAY, outcome) + count(Operation.GET_STRING, outcome)
+                    + count(Operation.GET_SERIALIZABLE, outcome);
         }
-        private long removeNext() {
-            if (lastUsageDates.isEmpty()) {
-                return 0;
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Stats{hitRate=").append(hitRate())
+                    .append(", hits=").append(hitCount())
+                    .append(", misses=").append(missCount())
+                    .append(", evictions=").append(evictionCount())
+                    .append(", bytesRead=").append(bytesRead)
+                    .append(", bytesWritten=").append(bytesWritten);
+            for (Operation operation : Operation.values()) {
+                builder.append(", ").append(operation).append('=').append(latency(operation));
             }
+            return builder.append('}').toString();
+        }
+    }
 
-            Long oldestUsage = null;
-            File mostLongUsedFile = null;
-            Set<Entry<File, Long>> entries = lastUsageDates.entrySet();
-            synchronized (lastUsageDates) {
-                for (Entry<File, Long> entry : entries) {
-                    if (mostLongUsedFile == null) {
-                        mostLongUsedFile = entry.getKey();
-                        oldestUsage = entry.getValue();
-                    } else {
-                        Long lastValueUsage = entry.getValue();
-                        if (lastValueUsage < oldestUsage) {
-                            oldestUsage = lastValueUsage;
-                            mostLongUsedFile = entry.getKey();
-                        }
-                    }
-                }
+    /**
+     * 耗时分布，第 i 个区间统计 [2^(i-1), 2^i) 纳秒的次数，第 0 个区间统计 0 纳秒
+     */
+    public static final class Latency {
+        private final long[] buckets;
+        private final long count;
+        private final long totalNanos;
+
+        Latency(long[] buckets, long totalNanos) {
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
             }
+            this.buckets = buckets;
+            this.count = count;
+            this.totalNanos = totalNanos;
+        }
+
+        public long count() {
+            return count;
+        }
 
-            long fileSize = calculateSize(mostLongUsedFile);
-            if (mostLongUsedFile != null && mostLongUsedFile.delete()) {
-                lastUsageDates.remove(mostLongUsedFile);
+        public long meanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * @param percentile 0~1 之间
+         * @return 耗时分位数所在区间的上限，单位：纳秒
+         */
+        public long percentileNanos(double percentile) {
+            long threshold = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= threshold && seen > 0) {
+                    return 1L << i;
+                }
             }
-            return fileSize;
+            return 0;
+        }
+
+        /**
+         * @return 每个区间的次数
+         */
+        public long[] buckets() {
+            return buckets.clone();
         }
 
-        private long calculateSize(File file) {
-            return file.length();
+        @Override
+        public String toString() {
+            return "{count=" + count + ", mean=" + meanNanos() + "ns, p50<="
+                    + percentileNanos(0.5) + "ns, p99<=" + percentileNanos(0.99) + "ns}";
         }
+    }
 
+    private Object getMemory(String key, int type) {
+        return mMemory != null ? mMemory.get(key, type) : null;
+    }
 
-       private void clear() {
-           lastUsageDates.clear();
-           cacheSize.set(0);
-           File[] files = cacheDir.listFiles();
-           if (files != null) {
-               for (File f : files) {
-                   if (!f.delete()) {
-                       break;
-                   }
-               }
-           }
-       }
+    private void putMemory(String key, int type, Object value, long expireTime) {
+        if (mMemory == null) {
+            return;
+        }
+        if (value == null) {
+            mMemory.remove(key);
+        } else {
+            mMemory.put(key, type, value, expireTime);
+        }
+    }
 
+    private byte[] getOffHeap(String key) {
+        return mOffHeap != null ? mOffHeap.get(key) : null;
     }
 
+    private void putOffHeap(String key, byte[] value, long expireTime) {
+        if (mOffHeap != null) {
+            mOffHeap.put(key, value, expireTime);
+        }
+    }
 
    /**
     * 保存 String数据 到 缓存中
@@ -546,25 +1822,14 @@ public final class  AppCache {
     * @param key   保存的key
     * @param value 保存的String数据
     */
-   private void putString(String key, String value) {
-       File file = mCache.newFile(key);
-       BufferedWriter out = null;
-       try {
-           out = new BufferedWriter(new FileWriter(file), 1024);
-           out.write(value);
-       } catch (IOException e) {
-           e.printStackTrace();
-       } finally {
-           if (out != null) {
-               try {
-                   out.flush();
-                   out.close();
-               } catch (IOException e) {
-                   e.printStackTrace();
-               }
-           }
-           mCache.put(file);
-       }
+   void putString(String key, String value) {
+       putString(key, value, Utils.NEVER_EXPIRE);
+   }
+
+   private void putString(String key, String value, long expireTime) {
+       writeByteArray(key, value.getBytes(StandardCharsets.UTF_8), expireTime);
+       putMemory(key, MemoryCache.TYPE_STRING, value, expireTime);
+       scheduleExpiry(key, expireTime);
    }
 
    private void putBitmap(String key, Bitmap value, int saveTime) {
@@ -583,7 +1848,6 @@ public final class  AppCache {
        return Utils.bytes2Bitmap(getByteArray(key));
    }
 
-
    /**
     * 保存 String数据 到 缓存中
     *
@@ -592,7 +1856,7 @@ public final class  AppCache {
     * @param saveTime 保存的时间，单位：秒
     */
    private void putString(String key, String value, int saveTime) {
-       putString(key, Utils.newStringWithDateInfo(saveTime, value));
+       putString(key, value, Utils.newExpireTime(saveTime));
    }
 
    /**
@@ -601,35 +1865,78 @@ public final class  AppCache {
     * @return String 数据
     */
    public String getString(String key) {
-       File file = mCache.get(key);
-       if (!file.exists()) {
-           return null;
+       Sample sample = mStats.start(Operation.GET_STRING);
+       try {
+           return readString(key, sample);
+       } finally {
+           sample.finish();
+       }
+   }
+
+   /**
+    * 整个文件只读一次，按字节检查文件头后直接按 UTF-8 解码，换行符和结尾的换行都原样保留
+    */
+   private String readString(String key, Sample sample) {
+       Object cached = getMemory(key, MemoryCache.TYPE_STRING);
+       if (cached != null) {
+           sample.hit();
+           return (String) cached;
        }
+       byte[] pending = getPending(key);
+       if (pending != null) {
+           sample.hit();
+           return new String(pending, StandardCharsets.UTF_8);
+       }
+       byte[] offHeap = getOffHeap(key);
+       if (offHeap != null) {
+           sample.hit();
+           return new String(offHeap, StandardCharsets.UTF_8);
+       }
+       Record record = null;
        boolean removeFile = false;
-       BufferedReader in = null;
        try {
-           in = new BufferedReader(new FileReader(file));
-           StringBuilder readString;
-           String currentLine;
-//
-           readString = new StringBuilder(in.readLine());
-           readString = new StringBuilder(readString.toString());
-           while ((currentLine = in.readLine()) != null) {
-               readString.append("\n").append(currentLine);
+           record = mCache.open(key);
+           if (record == null) {
+               return null;
            }
-           if (!Utils.isDue(readString.toString())) {
-               return Utils.clearDateInfo(readString.toString());
-           } else {
+           mStats.bytesRead.add(record.length);
+           Header header = Header.read(record);
+           if (header == null) {
+               // 旧版本的 ASCII 时间头，未到期时按新格式重新写入
+               byte[] data = new byte[(int) record.length];
+               record.readFully(ByteBuffer.wrap(data), 0);
+               long expireTime = Utils.getExpireTime(data);
+               if (Utils.isDue(expireTime)) {
+                   sample.expired();
+                   removeFile = true;
+                   return null;
+               }
+               String value = new String(Utils.clearDateInfo(data), StandardCharsets.UTF_8);
+               putString(key, value, expireTime);
+               sample.hit();
+               return value;
+           }
+           if (Utils.isDue(header.expireTime)) {
+               sample.expired();
                removeFile = true;
                return null;
            }
+           byte[] data = header.readValue(record);
+           String value = new String(data, StandardCharsets.UTF_8);
+           putMemory(key, MemoryCache.TYPE_STRING, value, header.expireTime);
+           putOffHeap(key, data, header.expireTime);
+           scheduleExpiry(key, header.expireTime);
+           sample.hit();
+           return value;
        } catch (IOException e) {
            e.printStackTrace();
+           sample.fail(e);
+           removeFile = e instanceof CorruptEntryException;
            return null;
        } finally {
-           if (in != null) {
+           if (record != null) {
                try {
-                   in.close();
+                   record.close();
                } catch (IOException e) {
                    e.printStackTrace();
                }
@@ -676,13 +1983,31 @@ public final class  AppCache {
     * @param saveTime 保存的时间，单位：秒
     */
    private void putObject(String key, Object value, int saveTime) {
+       putObject(key, value, saveTime, mCodec);
+   }
+
+   /**
+    * 使用指定的编码保存 Object到 缓存中，读取时根据数据中记录的编码自动解码
+    *
+    * @param key 保存的key
+    * @param value 保存的value
+    * @param codec 编码方式，不支持 value 的类型时改用 Java 序列化
+    */
+   public void putObject(String key, Object value, Codec codec) {
+       putObject(key, value, -1, codec);
+   }
 
-       ObjectOutputStream oos = null;
+   /**
+    * 使用指定的编码保存 Object到 缓存中，读取时根据数据中记录的编码自动解码
+    *
+    * @param key 保存的key
+    * @param value 保存的value
+    * @param saveTime 保存的时间，单位：秒
+    * @param codec 编码方式，不支持 value 的类型时改用 Java 序列化
+    */
+   public void putObject(String key, Object value, int saveTime, Codec codec) {
        try {
-           ByteArrayOutputStream bs = new ByteArrayOutputStream();
-           oos = new ObjectOutputStream(bs);
-           oos.writeObject(value);
-           byte[] data = bs.toByteArray();
+           byte[] data = encode(value, codec);
            if (saveTime != -1) {
                putByteArray(key, data, saveTime);
            } else {
@@ -690,49 +2015,65 @@ public final class  AppCache {
            }
        } catch (Exception e) {
            e.printStackTrace();
-       } finally {
-           try {
-               if (oos != null) {
-                   oos.close();
-               }
-           } catch (IOException e) {
-               e.printStackTrace();
-           }
        }
    }
 
+   /**
+    * 读取 Object 数据；开启内存缓存时缓存不可变的解码结果，
+    * 开启 {@link Builder#shareDecodedObjects} 时缓存所有解码后的对象，多次读取返回的是同一个实例
+    *
+    * @return Object 数据
+    */
    private Object getObject(String key) {
-       byte[] data = getByteArray(key);
-       if (data != null) {
-           ByteArrayInputStream bais = null;
-           ObjectInputStream ois = null;
+       return getObject(key, getMemory(key, MemoryCache.TYPE_OBJECT));
+   }
+
+   /**
+    * @param cached 调用方已经从内存缓存中取到的对象，没有时为 null
+    */
+   private Object getObject(String key, Object cached) {
+       Sample sample = mStats.start(Operation.GET_SERIALIZABLE);
+       try {
+           if (cached != null) {
+               sample.hit();
+               return copyIfArray(cached);
+           }
+           byte[] data = readByteArray(key, sample);
+           Object value;
            try {
-               bais = new ByteArrayInputStream(data);
-               ois = new ObjectInputStream(bais);
-               return ois.readObject();
+               value = readObject(data);
            } catch (Exception e) {
                e.printStackTrace();
+               sample.decodeFailed(e);
                return null;
-           } finally {
-               try {
-                   if (bais != null) {
-                       bais.close();
-                   }
-               } catch (IOException e) {
-                   e.printStackTrace();
-               }
-               try {
-                   if (ois != null) {
-                       ois.close();
-                   }
-               } catch (IOException e) {
-                   e.printStackTrace();
-               }
            }
+           if (value != null && mMemory != null && (mShareObjects || isImmutable(value))) {
+               mMemory.promote(key, data, value);
+               return copyIfArray(value);
+           }
+           return value;
+       } finally {
+           sample.finish();
        }
-       return null;
+   }
+   /**
+    * 放入内存缓存的数组每次返回副本，和堆外缓存、磁盘的读取结果一致
+    */
+   private static Object copyIfArray(Object value) {
+       return value instanceof byte[] ? ((byte[]) value).clone() : value;
+   }
 
+   /**
+    * @return 调用方无法修改 value，可以直接放入内存缓存共用
+    */
+   private static boolean isImmutable(Object value) {
+       Class<?> type = value.getClass();
+       return type == String.class || type == Integer.class || type == Long.class
+               || type == Boolean.class || type == Double.class || type == Float.class
+               || type == Short.class || type == Byte.class || type == Character.class
+               || value instanceof Enum;
    }
+
    public void putJSON(String key, JSONObject value) {
        putString(key, value.toString());
    }
@@ -750,7 +2091,6 @@ public final class  AppCache {
        }
    }
 
-
    public void putJSONArray(String key, JSONArray value) {
        putString(key, value.toString());
    }
@@ -801,6 +2141,18 @@ public final class  AppCache {
     * 清除所有数据
     */
    public void clear() {
+       if (mMemory != null) {
+           mMemory.clear();
+       }
+       if (mOffHeap != null) {
+           mOffHeap.clear();
+       }
+       if (mSweeper != null) {
+           mSweeper.clear();
+       }
+       if (mWriteBehind != null) {
+           mWriteBehind.clear();
+       }
        mCache.clear();
    }
 }
@@ -0,0 +1,331 @@
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AppCache 的 JMH 基准测试，结果为吞吐量，加上 GC profiler 后同时输出每次操作分配的内存
+ * <p>
+ * 运行：classpath 中需要 jmh-core、jmh-generator-annprocess、org.json，以及 AppCache 用到的
+ * android 类的 JVM 实现（例如 Robolectric 的 android-all），之后执行 main 或者
+ * <pre>
+ * java -jar benchmarks.jar AppCacheBenchmark -prof gc
+ * </pre>
+ * 每组测试都在新的临时目录中通过 {@link AppCache#get(File, long, int)} 创建实例，不使用内存缓存
+ *
+ * @see AppCache#stats()
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppCacheBenchmark {
+    private static final int SAVE_TIME = AppCache.TIME_DAY;
+
+    public enum Kind {
+        /**
+         * putStream / getByteBuffer，不经过编码的原始数据
+         */
+        BYTES,
+        /**
+         * putJSON / getString：公开的字符串接口只能通过 putJSON 写入，读取时不解析 JSON
+         */
+        STRING,
+        /**
+         * putJSON / getJSON
+         */
+        JSON,
+        /**
+         * putObject(HashMap, JAVA_CODEC) / getSerializable
+         */
+        SERIALIZABLE
+    }
+
+    /**
+     * 单线程读写，数据总量在限制以内，不会触发淘汰
+     */
+    @State(Scope.Benchmark)
+    public static class PutGetState {
+        private static final int KEY_COUNT = 16;
+
+        @Param({"BYTES", "STRING", "JSON", "SERIALIZABLE"})
+        public Kind kind;
+
+        @Param({"100", "10240", "1048576"})
+        public int size;
+
+        @Param({"false", "true"})
+        public boolean ttl;
+
+        private File dir;
+        private AppCache cache;
+        private Object value;
+        private String[] keys;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = newCacheDir();
+            cache = AppCache.get(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+            value = newValue(kind, size, new Random(42));
+            keys = new String[KEY_COUNT];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = "key-" + i;
+                put(cache, kind, keys[i], value, ttl);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            closeAndDelete(cache, dir);
+        }
+
+        private String nextKey() {
+            next = (next + 1) % keys.length;
+            return keys[next];
+        }
+    }
+
+    @Benchmark
+    public void put(PutGetState state) {
+        put(state.cache, state.kind, state.nextKey(), state.value, state.ttl);
+    }
+
+    @Benchmark
+    public Object get(PutGetState state) {
+        return get(state.cache, state.kind, state.nextKey());
+    }
+
+    /**
+     * 写入的数据远多于限制，每次写入都会淘汰旧数据
+     */
+    @State(Scope.Benchmark)
+    public static class EvictionState {
+        private static final int KEY_SPACE = 100000;
+
+        /**
+         * SIZE：大小先到达 sizeLimit；COUNT：条数先到达 countLimit
+         */
+        @Param({"SIZE", "COUNT"})
+        public String limit;
+
+        @Param({"10240"})
+        public int size;
+
+        private File dir;
+        private AppCache cache;
+        private byte[] value;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = newCacheDir();
+            if ("SIZE".equals(limit)) {
+                cache = AppCache.get(dir, 100L * size, Integer.MAX_VALUE);
+            } else {
+                cache = AppCache.get(dir, Long.MAX_VALUE, 100);
+            }
+            value = (byte[]) newValue(Kind.BYTES, size, new Random(42));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            closeAndDelete(cache, dir);
+        }
+    }
+
+    @Benchmark
+    public void putEvicting(EvictionState state) {
+        int key = ThreadLocalRandom.current().nextInt(EvictionState.KEY_SPACE);
+        putBytes(state.cache, "key-" + key, state.value, false);
+    }
+
+    /**
+     * 多线程按比例混合读写，同一个实例被所有线程共享
+     */
+    @State(Scope.Benchmark)
+    public static class MixedState {
+        private static final int KEY_COUNT = 1024;
+
+        /**
+         * 读操作所占的百分比
+         */
+        @Param({"50", "90", "99"})
+        public int readPercent;
+
+        @Param({"BYTES", "SERIALIZABLE"})
+        public Kind kind;
+
+        @Param({"1024"})
+        public int size;
+
+        private File dir;
+        private AppCache cache;
+        private Object value;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = newCacheDir();
+            cache = AppCache.get(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+            value = newValue(kind, size, new Random(42));
+            for (int i = 0; i < KEY_COUNT; i++) {
+                put(cache, kind, "key-" + i, value, false);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            closeAndDelete(cache, dir);
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object mixed(MixedState state) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String key = "key-" + random.nextInt(MixedState.KEY_COUNT);
+        if (random.nextInt(100) < state.readPercent) {
+            return get(state.cache, state.kind, key);
+        }
+        put(state.cache, state.kind, key, state.value, false);
+        return null;
+    }
+
+    private static void put(AppCache cache, Kind kind, String key, Object value, boolean ttl) {
+        switch (kind) {
+            case BYTES:
+                putBytes(cache, key, (byte[]) value, ttl);
+                break;
+            case STRING:
+            case JSON:
+                if (ttl) {
+                    cache.putJSON(key, (JSONObject) value, SAVE_TIME);
+                } else {
+                    cache.putJSON(key, (JSONObject) value);
+                }
+                break;
+            default:
+                if (ttl) {
+                    cache.putObject(key, value, SAVE_TIME, AppCache.JAVA_CODEC);
+                } else {
+                    cache.putObject(key, value, AppCache.JAVA_CODEC);
+                }
+                break;
+        }
+    }
+
+    private static void putBytes(AppCache cache, String key, byte[] value, boolean ttl) {
+        try {
+            cache.putStream(key, new ByteArrayInputStream(value), ttl ? SAVE_TIME : -1);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object get(AppCache cache, Kind kind, String key) {
+        switch (kind) {
+            case BYTES:
+                return cache.getByteBuffer(key);
+            case STRING:
+                return cache.getString(key);
+            case JSON:
+                return cache.getJSON(key);
+            default:
+                return cache.getSerializable(key);
+        }
+    }
+
+    /**
+     * @return 编码后约为 size 字节的数据
+     */
+    private static Object newValue(Kind kind, int size, Random random) {
+        switch (kind) {
+            case BYTES: {
+                byte[] bytes = new byte[size];
+                random.nextBytes(bytes);
+                return bytes;
+            }
+            case STRING:
+            case JSON: {
+                JSONObject json = new JSONObject();
+                try {
+                    // 每个字段约 32 字节
+                    for (int i = 0; i < Math.max(1, size / 32); i++) {
+                        json.put("field" + i, randomText(20, random));
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return json;
+            }
+            default: {
+                HashMap<String, Serializable> map = new HashMap<>();
+                ArrayList<Integer> numbers = new ArrayList<>();
+                for (int i = 0; i < Math.max(1, size / 64); i++) {
+                    map.put("field" + i, randomText(20, random));
+                    numbers.add(random.nextInt());
+                }
+                map.put("numbers", numbers);
+                return map;
+            }
+        }
+    }
+
+    private static String randomText(int length, Random random) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+    private static File newCacheDir() throws IOException {
+        return Files.createTempDirectory("AppCacheBenchmark").toFile();
+    }
+
+    private static void closeAndDelete(AppCache cache, File dir) {
+        cache.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AppCacheBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,155 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class AppCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AppCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new AppCache.Builder(folder.getRoot()).build();
+    }
+
+    @Test
+    public void corruptValueIsRejectedAndRemoved() throws IOException {
+        cache.putSerializable("s", "hello world value");
+        assertEquals("hello world value", cache.getSerializable("s"));
+
+        flip(cache.file("s"), Header.SIZE + 5);
+        assertNull(cache.getSerializable("s"));
+        assertNull(cache.file("s"));
+    }
+
+    @Test
+    public void truncatedValueIsRejected() throws IOException {
+        cache.putSerializable("t", "truncate me please");
+        RandomAccessFile file = new RandomAccessFile(cache.file("t"), "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        assertNull(cache.getSerializable("t"));
+        assertNull(cache.file("t"));
+    }
+
+    @Test
+    public void corruptStreamThrowsAtEnd() throws IOException {
+        byte[] data = new byte[200000];
+        new Random(3).nextBytes(data);
+        cache.putStream("st", new ByteArrayInputStream(data), -1);
+        flip(cache.file("st"), 5000);
+
+        InputStream in = cache.openInputStream("st");
+        assertNotNull(in);
+        byte[] buffer = new byte[8192];
+        try {
+            while (in.read(buffer) != -1) {
+                // 读到末尾时才能比较校验和
+            }
+            fail("corrupt stream read without error");
+        } catch (CorruptEntryException expected) {
+            // 数据和文件头中的校验和不一致
+        } finally {
+            in.close();
+        }
+        assertNull(cache.file("st"));
+    }
+
+    @Test
+    public void stringRoundTripKeepsNonAsciiAndLineBreaks() throws IOException {
+        String value = "héllo 世界\r\nsecond line\r\n";
+        cache.putString("str", value);
+        assertEquals(value, cache.getString("str"));
+
+        // 按 UTF-8 保存，换行符原样写入
+        byte[] stored = Files.readAllBytes(cache.file("str").toPath());
+        byte[] expected = value.getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, Arrays.copyOfRange(stored, stored.length - expected.length,
+                stored.length));
+    }
+
+    @Test
+    public void legacyAsciiHeaderIsReadAndRewritten() throws IOException {
+        String value = "旧数据\r\nline";
+        cache.putString("old", "placeholder");
+        File file = cache.file("old");
+        byte[] legacy = writeLegacy(file, System.currentTimeMillis(), 3600, value);
+
+        assertEquals(value, cache.getString("old"));
+        // 读取后已按新格式重新写入
+        assertFalse(Arrays.equals(legacy, Files.readAllBytes(cache.file("old").toPath())));
+        assertEquals(value, cache.getString("old"));
+    }
+
+    @Test
+    public void expiredLegacyEntryIsRemoved() throws IOException {
+        cache.putString("expired", "placeholder");
+        writeLegacy(cache.file("expired"), System.currentTimeMillis() - 7200 * 1000L, 3600,
+                "stale");
+
+        assertNull(cache.getString("expired"));
+        assertNull(cache.file("expired"));
+    }
+
+    @Test
+    public void expiredEntryIsSweptAfterRestartWithoutBeingRead() throws Exception {
+        cache.close();
+        AppCache writer = new AppCache.Builder(folder.getRoot()).expirySweep(true).build();
+        writer.putStream("short", new ByteArrayInputStream(new byte[]{1, 2, 3}), 1);
+        File file = writer.file("short");
+        assertNotNull(file);
+        writer.close();
+
+        // 重新打开后不再读这个 key，到期的文件由时间轮根据加载出的索引删除
+        cache = new AppCache.Builder(folder.getRoot()).expirySweep(true).build();
+        long deadline = System.currentTimeMillis() + 8000;
+        while (file.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse("expired entry not swept", file.exists());
+    }
+
+    /**
+     * 旧版本的格式：13 位保存时间（毫秒）、'-'、有效秒数、' '，之后是数据
+     */
+    private static byte[] writeLegacy(File file, long saveTime, int saveSeconds, String value)
+            throws IOException {
+        String dateInfo = String.format(Locale.US, "%013d-%d ", saveTime, saveSeconds);
+        byte[] data = (dateInfo + value).getBytes(StandardCharsets.UTF_8);
+        Files.write(file.toPath(), data);
+        return data;
+    }
+
+    private static void flip(File file, long position) throws IOException {
+        RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+        try {
+            raFile.seek(position);
+            int b = raFile.read();
+            raFile.seek(position);
+            raFile.write(b ^ 1);
+        } finally {
+            raFile.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void getAfterPutSeesLastPutEvenIfExecutorReorders() throws Exception {
+        LifoExecutor executor = new LifoExecutor();
+        AppCache cache = new AppCache.Builder(folder.getRoot()).async(executor, 16).build();
+        CompletableFuture<Void> first = cache.putAsync("k", "v1");
+        CompletableFuture<Void> second = cache.putAsync("k", "v2");
+        CompletableFuture<String> read = cache.getAsync("k");
+        assertFalse(read.isDone());
+
+        // 后提交的任务先执行；同一个 key 的操作要等前一个完成后才提交，顺序不受影响
+        executor.runAll();
+        assertTrue(first.isDone() && second.isDone());
+        assertEquals("v2", read.get());
+        assertEquals("v2", cache.getSerializable("k"));
+        cache.close();
+    }
+
+    @Test
+    public void removeAsyncWinsOverEarlierPut() throws Exception {
+        LifoExecutor executor = new LifoExecutor();
+        AppCache cache = new AppCache.Builder(folder.getRoot()).async(executor, 16).build();
+        cache.putAsync("k", "v");
+        CompletableFuture<Boolean> removed = cache.removeAsync("k");
+        CompletableFuture<String> read = cache.getAsync("k");
+
+        executor.runAll();
+        assertTrue(removed.get());
+        assertNull(read.get());
+        assertNull(cache.getSerializable("k"));
+        cache.close();
+    }
+
+    @Test
+    public void manyPutsOnDefaultExecutorKeepSubmitOrder() throws Exception {
+        AppCache cache = new AppCache.Builder(folder.getRoot()).build();
+        for (int i = 0; i < 200; i++) {
+            cache.putAsync("k", i);
+            cache.putAsync("other" + i, i);
+        }
+        CompletableFuture<Integer> read = cache.getAsync("k");
+        assertEquals(199, (int) read.get(10, TimeUnit.SECONDS));
+        cache.close();
+    }
+
+    /**
+     * 手动执行提交的任务，每次取最后提交的一个
+     */
+    private static final class LifoExecutor implements Executor {
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            tasks.push(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = poll()) != null) {
+                task.run();
+            }
+        }
+
+        private synchronized Runnable poll() {
+            return tasks.poll();
+        }
+    }
+}
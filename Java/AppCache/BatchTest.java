@@ -0,0 +1,81 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void getAllSkipsMissingAndExpiredKeys() throws Exception {
+        checkMixedTtls(new AppCache.Builder(new File(folder.getRoot(), "files")));
+    }
+
+    @Test
+    public void getAllSkipsMissingAndExpiredKeysInMemory() throws Exception {
+        checkMixedTtls(new AppCache.Builder(new File(folder.getRoot(), "memory"))
+                .memory(1 << 20, 100));
+    }
+
+    @Test
+    public void getAllSkipsMissingAndExpiredKeysInLog() throws Exception {
+        checkMixedTtls(new AppCache.Builder(new File(folder.getRoot(), "log"))
+                .logStructured(true));
+    }
+
+    @Test
+    public void putAllReplacesExistingValues() throws Exception {
+        AppCache cache = new AppCache.Builder(folder.getRoot()).build();
+        cache.putSerializable("a", "old");
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("a", "new");
+        values.put("b", "b");
+        cache.putAll(values, -1);
+
+        assertEquals(values, cache.getAll(Arrays.asList("a", "b")));
+        assertEquals("new", cache.getSerializable("a"));
+        cache.close();
+    }
+
+    /**
+     * 两批不同保存时间的数据，加上单独写入、用另一种编码的一条；短的到期后 getAll 只返回还有效的 key
+     */
+    private static void checkMixedTtls(AppCache.Builder builder) throws Exception {
+        AppCache cache = builder.build();
+        Map<String, Integer> shortLived = new LinkedHashMap<>();
+        shortLived.put("s1", 1);
+        shortLived.put("s2", 2);
+        Map<String, Integer> longLived = new LinkedHashMap<>();
+        longLived.put("l1", 10);
+        longLived.put("l2", 20);
+        cache.putAll(shortLived, 1);
+        cache.putAll(longLived, -1);
+        cache.putObject("hour", 30, 3600, AppCache.BINARY_CODEC);
+
+        // 重复的 key 只返回一次，不存在的 key 不出现在结果中，顺序和请求一致
+        Map<String, Integer> all = cache.getAll(
+                Arrays.asList("s1", "missing", "l1", "s2", "l1", "hour", "l2"));
+        assertEquals(Arrays.asList("s1", "l1", "s2", "hour", "l2"),
+                new ArrayList<>(all.keySet()));
+        assertEquals(1, (long) all.get("s1"));
+        assertEquals(30, (long) all.get("hour"));
+
+        Thread.sleep(1200);
+        all = cache.getAll(Arrays.asList("s1", "s2", "l1", "l2", "hour", "missing"));
+        assertEquals(Arrays.asList("l1", "l2", "hour"), new ArrayList<>(all.keySet()));
+        assertEquals(20, (long) all.get("l2"));
+        assertNull(cache.getSerializable("s1"));
+        assertTrue(cache.getAll(Arrays.asList("s2", "missing")).isEmpty());
+        cache.close();
+    }
+}
@@ -0,0 +1,97 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CodecTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void binaryCodecRoundTripsEverySupportedType() throws IOException {
+        Object[] values = {
+                null, true, false, (byte) -7, (short) 1234, 0, -1, Integer.MIN_VALUE,
+                Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, 1.5f, Float.NaN, -0.25d,
+                Double.MAX_VALUE, 'x', '世', "", "héllo 世界", list(1, "a", null)
+        };
+        for (Object value : values) {
+            assertEquals(String.valueOf(value), value, roundTrip(value));
+        }
+
+        byte[] bytes = {0, 1, -1, 127, -128};
+        assertArrayEquals(bytes, (byte[]) roundTrip(bytes));
+
+        Set<Object> set = new LinkedHashSet<>(list("b", "a", 3L));
+        Object decodedSet = roundTrip(set);
+        assertTrue(decodedSet instanceof Set);
+        assertEquals(list("b", "a", 3L), new ArrayList<>((Set<?>) decodedSet));
+
+        // 嵌套的集合，解码后保持插入顺序
+        Map<Object, Object> map = new LinkedHashMap<>();
+        map.put("z", list(1, list(2, 3)));
+        map.put(7, null);
+        map.put(null, set);
+        Map<?, ?> decodedMap = (Map<?, ?>) roundTrip(map);
+        assertEquals(map, decodedMap);
+        assertEquals(new ArrayList<>(map.keySet()), new ArrayList<>(decodedMap.keySet()));
+    }
+
+    @Test
+    public void truncatedBinaryValueThrowsCorruptEntry() throws IOException {
+        Map<Object, Object> map = new LinkedHashMap<>();
+        map.put("key", list("value", 42L, new byte[]{1, 2, 3}));
+        byte[] encoded = encode(map);
+        for (int length = 0; length < encoded.length; length++) {
+            try {
+                AppCache.BINARY_CODEC.decode(
+                        new ByteArrayInputStream(Arrays.copyOf(encoded, length)));
+                fail("decoded " + length + " of " + encoded.length + " bytes");
+            } catch (CorruptEntryException expected) {
+                // 数据不完整
+            }
+        }
+    }
+
+    @Test
+    public void unsupportedTypeFallsBackToJavaSerialization() throws IOException {
+        AppCache cache = new AppCache.Builder(folder.getRoot()).build();
+        cache.putObject("binary", list("a", 1), AppCache.BINARY_CODEC);
+        cache.putObject("java", new StringBuilder("sb"), AppCache.BINARY_CODEC);
+
+        assertEquals(list("a", 1), cache.getSerializable("binary"));
+        // 写入时 BinaryCodec 不支持 StringBuilder，改用 Java 序列化，读取时按数据开头自动识别
+        assertEquals("sb", String.valueOf((Object) cache.getSerializable("java")));
+        assertNull(cache.getSerializable("missing"));
+        cache.close();
+    }
+
+    private static Object roundTrip(Object value) throws IOException {
+        return AppCache.BINARY_CODEC.decode(new ByteArrayInputStream(encode(value)));
+    }
+
+    private static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(AppCache.BINARY_CODEC.encode(value, out));
+        return out.toByteArray();
+    }
+
+    private static List<Object> list(Object... items) {
+        return new ArrayList<>(Arrays.asList(items));
+    }
+}
@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/**
+ * 缓存数据和文件头中的校验和不一致，或者比文件头中记录的短，读取到这样的数据时删除
+ */
+class CorruptEntryException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CorruptEntryException(String message) {
+        super(message);
+    }
+}
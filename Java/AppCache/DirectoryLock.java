@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * 缓存目录的进程锁。第一个打开目录的进程独占锁文件的 {@link #OWNER_REGION}，成为目录的所有者，
+ * 只有所有者读写索引日志；之后打开的进程共享 {@link #GUEST_REGION}，不使用日志，启动时扫描目录。
+ * 进程退出时系统自动释放文件锁，所有者被杀死后下一个打开目录的进程成为所有者
+ * <p>
+ * 其他进程打开目录时把锁文件中的计数加一，所有者据此发现在两次检查之间打开又退出的进程
+ */
+final class DirectoryLock {
+    static final String LOCK_FILE = "lock";
+    private static final long OWNER_REGION = 0;
+    private static final long GUEST_REGION = 1;
+    private static final long GENERATION_REGION = 2;
+    private static final long GENERATION_OFFSET = 8;
+    /**
+     * 所有者检查其他进程的最短间隔
+     */
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private final RandomAccessFile raFile;
+    private final FileChannel channel;
+    private final FileLock ownerLock;
+    private final FileLock guestLock;
+    private long generation;
+    private volatile long checkedAt;
+    private volatile boolean othersPresent;
+
+    DirectoryLock(File dir) throws IOException {
+        raFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+        channel = raFile.getChannel();
+        ownerLock = tryLock(OWNER_REGION, false);
+        if (ownerLock == null) {
+            bumpGeneration();
+            guestLock = lockShared(GUEST_REGION);
+        } else {
+            guestLock = null;
+        }
+        generation = readGeneration();
+    }
+
+    /**
+     * @return 其他进程持有该区域，或者本进程中已有实例持有该区域时返回 null
+     */
+    private FileLock tryLock(long position, boolean shared) throws IOException {
+        try {
+            return channel.tryLock(position, 1, shared);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 所有者检查时会短暂独占该区域，这里等它检查完
+     *
+     * @return 本进程中已有实例持有该区域时返回 null
+     */
+    private FileLock lockShared(long position) throws IOException {
+        try {
+            return channel.lock(position, 1, true);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private void bumpGeneration() throws IOException {
+        // 文件锁由整个进程持有，同一进程中的实例先在类上互斥
+        synchronized (DirectoryLock.class) {
+            FileLock lock = channel.lock(GENERATION_REGION, 1, false);
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(8);
+                buf.putLong(0, readGeneration() + 1);
+                while (buf.hasRemaining()) {
+                    channel.write(buf, GENERATION_OFFSET + buf.position());
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        while (buf.hasRemaining()
+                && channel.read(buf, GENERATION_OFFSET + buf.position()) > 0) {
+        }
+        return buf.hasRemaining() ? 0 : buf.getLong(0);
+    }
+
+    boolean isOwner() {
+        return ownerLock != null;
+    }
+
+    /**
+     * 所有者调用，结果最多缓存 {@link #CHECK_INTERVAL_MILLIS}
+     *
+     * @param force 忽略缓存的结果
+     * @return 有其他进程正在使用目录，或者上次检查之后有进程打开过目录
+     */
+    boolean othersActive(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - checkedAt < CHECK_INTERVAL_MILLIS) {
+            return othersPresent;
+        }
+        synchronized (this) {
+            if (!force && now - checkedAt < CHECK_INTERVAL_MILLIS) {
+                return othersPresent;
+            }
+            boolean present;
+            try {
+                FileLock probe = tryLock(GUEST_REGION, false);
+                present = probe == null;
+                if (probe != null) {
+                    probe.release();
+                }
+                long current = readGeneration();
+                if (current != generation) {
+                    generation = current;
+                    present = true;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                present = true;
+            }
+            othersPresent = present;
+            checkedAt = now;
+            return present;
+        }
+    }
+
+    void close() {
+        try {
+            // 关闭通道时释放它持有的文件锁
+            raFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * W-TinyLFU 用来估计 key 访问频率的 count-min sketch，每个计数器 4 位，最大为 15；
+ * 计数的总次数达到容量的 10 倍时所有计数减半，让过去的热点逐渐冷却。调用方需持有 AccessOrder.lock
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    /**
+     * 初始分配的计数表最多对应的条数
+     */
+    static final int INITIAL_MAX = 1 << 16;
+
+    private long[] table = new long[1];
+    private int sampleSize = 10;
+    private int size;
+
+    /**
+     * 条数超过计数表的容量时扩大一倍，扩大后之前的计数会丢失
+     */
+    void ensureCapacity(int count) {
+        if (count <= table.length || table.length >= (1 << 30)) {
+            return;
+        }
+        table = new long[Math.max(table.length * 2,
+                AccessOrder.ceilingPowerOfTwo(count))];
+        sampleSize = 10 * Math.min(table.length, Integer.MAX_VALUE / 10);
+        size = 0;
+    }
+
+    int frequency(int hash) {
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(h, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(h, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            halve();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void halve() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return ((int) hash) & (table.length - 1);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * 缓存文件头，固定 {@link #SIZE} 个字节，读取前几个字节即可判断是否到期：
+ * magic(4) version(1) flags(1) reserved(2) expireTime(8) length(8) checksum(4)
+ * <p>
+ * checksum 是文件头之后所有数据（压缩过的数据按压缩后的内容）的校验和，读取数据时顺便校验；
+ * 版本 1 的文件头没有 checksum，只有 24 个字节，读取时不校验
+ */
+final class Header {
+    private static final int MAGIC = 0x0041431E;
+    private static final byte VERSION = 2;
+    private static final byte VERSION_1 = 1;
+    static final int SIZE = 28;
+    private static final int SIZE_1 = 24;
+    /**
+     * length 和 checksum 字段在文件头中的位置，流式写入时最后填写
+     */
+    static final int LENGTH_OFFSET = 16;
+    private static final int CHECKSUM_OFFSET = 24;
+    /**
+     * 数据经过 deflate 压缩，格式见 {@link Utils#compress(byte[])}，length 为压缩后的长度
+     */
+    static final int FLAG_DEFLATE = 1;
+    /**
+     * checksum 为 CRC32C；没有该标志时为 CRC32（运行环境没有 CRC32C 时使用）
+     */
+    private static final int FLAG_CRC32C = 2;
+    private static final Constructor<? extends Checksum> CRC32C = findCrc32c();
+
+    private final int flags;
+    final long expireTime;
+    final long length;
+    /**
+     * 文件头的长度，也就是数据的起始位置
+     */
+    final int size;
+    private final int checksum;
+
+    private Header(int flags, long expireTime, long length, int size, int checksum) {
+        this.flags = flags;
+        this.expireTime = expireTime;
+        this.length = length;
+        this.size = size;
+        this.checksum = checksum;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Checksum> findCrc32c() {
+        try {
+            return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C")
+                    .getConstructor();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 写入时使用的校验和，优先使用 CRC32C
+     */
+    static Checksum newChecksum() {
+        if (CRC32C != null) {
+            try {
+                return CRC32C.newInstance();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return new CRC32();
+    }
+
+    static int checksumFlag(Checksum checksum) {
+        return checksum instanceof CRC32 ? 0 : FLAG_CRC32C;
+    }
+
+    /**
+     * @return data 的校验和，已经按 checksum 的算法加上标志的 flags 通过 {@link #encode} 写入
+     */
+    static byte[] encode(int flags, long expireTime, byte[] data) {
+        Checksum checksum = newChecksum();
+        checksum.update(data, 0, data.length);
+        return encode(flags | checksumFlag(checksum), expireTime, data.length,
+                (int) checksum.getValue());
+    }
+
+    static byte[] encode(int flags, long expireTime, long length, int checksum) {
+        return ByteBuffer.allocate(SIZE)
+                .putInt(MAGIC)
+                .put(VERSION)
+                .put((byte) flags)
+                .putShort((short) 0)
+                .putLong(expireTime)
+                .putLong(length)
+                .putInt(checksum)
+                .array();
+    }
+
+    /**
+     * 读取记录开头的文件头
+     *
+     * @return 解析出的文件头；不是新格式的文件时返回 null
+     */
+    static Header read(Record record) throws IOException {
+        byte[] head = new byte[SIZE];
+        int headLength = (int) Math.min(SIZE, record.length);
+        record.readFully(ByteBuffer.wrap(head, 0, headLength), 0);
+        return decode(head, headLength);
+    }
+
+    /**
+     * @return 文件头中的到期时间；不是新格式的文件头时返回 {@link Utils#NEVER_EXPIRE}
+     */
+    static long expireTimeOf(byte[] data, int length) {
+        Header header = decode(data, length);
+        return header != null ? header.expireTime : Utils.NEVER_EXPIRE;
+    }
+
+    /**
+     * @return 解析出的文件头；不是新格式的文件（旧版本的 ASCII 时间头或没有文件头）时返回 null
+     */
+    private static Header decode(byte[] data, int length) {
+        if (length < SIZE_1) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        byte version = buffer.get();
+        if (version != VERSION_1 && (version != VERSION || length < SIZE)) {
+            return null;
+        }
+        int flags = buffer.get() & 0xFF;
+        buffer.getShort();
+        long expireTime = buffer.getLong();
+        long valueLength = buffer.getLong();
+        if (version == VERSION_1) {
+            return new Header(flags, expireTime, valueLength, SIZE_1, 0);
+        }
+        return new Header(flags, expireTime, valueLength, SIZE, buffer.getInt());
+    }
+
+    boolean isCompressed() {
+        return (flags & FLAG_DEFLATE) != 0;
+    }
+
+    /**
+     * @return 校验数据用的 checksum；版本 1 的文件头或运行环境不支持记录的算法时返回 null，不校验
+     */
+    Checksum newVerifier() {
+        if (size == SIZE_1) {
+            return null;
+        }
+        if ((flags & FLAG_CRC32C) == 0) {
+            return new CRC32();
+        }
+        return CRC32C != null ? newChecksum() : null;
+    }
+
+    private void verify(Checksum verifier) throws CorruptEntryException {
+        if (verifier != null && (int) verifier.getValue() != checksum) {
+            throw new CorruptEntryException("checksum mismatch");
+        }
+    }
+
+    /**
+     * 读取文件头之后的数据，压缩过的数据会先解压
+     *
+     * @throws CorruptEntryException 数据和文件头中的校验和不一致
+     */
+    byte[] readValue(Record record) throws IOException {
+        if (size + length > record.length) {
+            throw new CorruptEntryException("truncated entry");
+        }
+        byte[] stored = new byte[(int) length];
+        record.readFully(ByteBuffer.wrap(stored), size);
+        Checksum verifier = newVerifier();
+        if (verifier != null) {
+            verifier.update(stored, 0, stored.length);
+            verify(verifier);
+        }
+        return isCompressed() ? Utils.decompress(stored) : stored;
+    }
+
+    /**
+     * 校验映射到内存的数据，只在内存中走一遍，不再读取文件
+     */
+    void verify(ByteBuffer mapped) throws CorruptEntryException {
+        Checksum verifier = newVerifier();
+        if (verifier == null) {
+            return;
+        }
+        ByteBuffer buffer = mapped.duplicate();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            verifier.update(chunk, 0, n);
+        }
+        verify(verifier);
+    }
+
+    /**
+     * @return 读取时计算校验和的流，读到末尾时校验不一致会先调用 onCorrupt 再抛出
+     * {@link CorruptEntryException}
+     */
+    InputStream verifying(InputStream in, Runnable onCorrupt) {
+        final Checksum verifier = newVerifier();
+        if (verifier == null) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    verifier.update(b, off, read);
+                    remaining -= read;
+                } else if (read < 0) {
+                    if (remaining != 0 || (int) verifier.getValue() != checksum) {
+                        onCorrupt.run();
+                        throw new CorruptEntryException("checksum mismatch");
+                    }
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // 跳过的数据也需要计入校验和
+                byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 0))];
+                long skipped = 0;
+                while (skipped < n) {
+                    int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                    if (read < 0) {
+                        break;
+                    }
+                    skipped += read;
+                }
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 所有实例共用的批量读写线程池
+ */
+final class IoExecutor {
+    private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+            Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors() * 2)),
+            newThreadFactory("AppCache-io-"));
+
+    /**
+     * @return 创建守护线程的 ThreadFactory，线程名为 prefix 加序号
+     */
+    static ThreadFactory newThreadFactory(String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * 并行执行 tasks，只有一个任务时直接在当前线程执行
+     *
+     * @return 按 tasks 顺序排列的结果
+     * @throws IOException 第一个抛出的异常
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks)
+            throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            if (tasks.size() == 1) {
+                results.add(tasks.get(0).call());
+                return results;
+            }
+            boolean interrupted = false;
+            List<Future<T>> futures = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                futures.add(INSTANCE.submit(task));
+            }
+            Exception error = null;
+            for (Future<T> future : futures) {
+                while (true) {
+                    try {
+                        results.add(future.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        if (error == null) {
+                            error = (Exception) e.getCause();
+                        }
+                        results.add(null);
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+            return results;
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
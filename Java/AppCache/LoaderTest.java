@@ -0,0 +1,136 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoaderTest {
+    private static final int THREADS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentMissesCallLoaderOnce() throws Exception {
+        AppCache cache = new AppCache.Builder(folder.getRoot()).build();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReferenceArray<Object> results = runConcurrently(() -> cache.getOrLoad("k",
+                key -> {
+                    calls.incrementAndGet();
+                    release.await();
+                    return "loaded " + key;
+                }, -1), release);
+
+        assertEquals(1, calls.get());
+        for (int i = 0; i < THREADS; i++) {
+            assertEquals("loaded k", results.get(i));
+        }
+        // 加载的结果已经保存，之后命中缓存不再调用 loader
+        assertEquals("loaded k", cache.getOrLoad("k", key -> {
+            throw new AssertionError("loader called on hit");
+        }, -1));
+        cache.close();
+    }
+
+    @Test
+    public void loaderExceptionReachesAllWaiters() throws Exception {
+        AppCache cache = new AppCache.Builder(folder.getRoot()).build();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        IOException failure = new IOException("backend down");
+        AtomicReferenceArray<Object> results = runConcurrently(() -> cache.getOrLoad("k",
+                key -> {
+                    calls.incrementAndGet();
+                    release.await();
+                    throw failure;
+                }, -1), release);
+
+        assertEquals(1, calls.get());
+        for (int i = 0; i < THREADS; i++) {
+            Object result = results.get(i);
+            assertTrue(String.valueOf(result), result instanceof ExecutionException);
+            assertSame(failure, ((ExecutionException) result).getCause());
+        }
+        // 失败的结果不保存，下一次调用重新加载
+        assertNull(cache.getSerializable("k"));
+        assertEquals("retry", cache.getOrLoad("k", key -> "retry", -1));
+        cache.close();
+    }
+
+    /**
+     * 在 THREADS 个线程中同时执行 call，等所有线程都阻塞（一个在 loader 中，其余等待加载结果）后打开 release
+     *
+     * @return 每个线程的返回值或抛出的异常
+     */
+    private static AtomicReferenceArray<Object> runConcurrently(Call call, CountDownLatch release)
+            throws InterruptedException {
+        AtomicReferenceArray<Object> results = new AtomicReferenceArray<>(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    results.set(index, call.call());
+                } catch (Throwable e) {
+                    results.set(index, e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!allWaiting(threads)) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("callers did not block on the load");
+            }
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        return results;
+    }
+
+    /**
+     * @return 所有线程都阻塞在同一次加载中：执行 loader 的线程和等待结果的线程栈中都有 FutureTask
+     */
+    private static boolean allWaiting(List<Thread> threads) {
+        for (Thread thread : threads) {
+            if (thread.getState() != Thread.State.WAITING || !inLoad(thread)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean inLoad(Thread thread) {
+        for (StackTraceElement frame : thread.getStackTrace()) {
+            if (frame.getClassName().equals(FutureTask.class.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private interface Call {
+        Object call() throws Exception;
+    }
+}
@@ -0,0 +1,742 @@
+import com.bubiu.counter.entity.StartThread;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 日志结构的存储引擎：所有记录顺序追加到段文件中，内存中保存完整 key 到记录位置的索引，
+ * 不会因为 key 的 hashCode 相同而读到别的数据；失效记录较多的段文件由后台线程合并。
+ * 写入返回前段文件已经写入磁盘；单独删除时追加的删除标记不等待磁盘，崩溃后被删除的数据可能重新出现
+ * <p>
+ * 段文件中每条记录的格式：keyLength(4) entryLength(8) key entry，
+ * entryLength 为 {@link #TOMBSTONE} 时表示该 key 已删除
+ */
+class LogStore implements Store {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int RECORD_HEAD_SIZE = 12;
+    private static final int MAX_KEY_LENGTH = 64 * 1024;
+    private static final long TOMBSTONE = -1;
+    /**
+     * 段文件中失效数据的比例超过该值时合并
+     */
+    private static final float COMPACT_RATIO = 0.5f;
+
+    private final File cacheDir;
+    private final long sizeLimit;
+    private final int countLimit;
+    private final StatsRecorder stats;
+    /**
+     * 完整 key 到记录位置的索引，修改时需持有 lru.lock
+     */
+    private final ConcurrentHashMap<String, LogEntry> index = new ConcurrentHashMap<>();
+    /**
+     * 按访问顺序排列的记录；segments、activeSegment、liveSize 以及段文件的追加也由 lru.lock 保护
+     */
+    private final AccessOrder<LogEntry> lru;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile ExpiryListener expiryListener;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private Segment activeSegment;
+    private long liveSize;
+
+    LogStore(File cacheDir, long sizeLimit, int countLimit, StatsRecorder stats,
+            AppCache.EvictionPolicy policy) {
+        this.cacheDir = cacheDir;
+        lru = new AccessOrder<>(policy, countLimit);
+        this.sizeLimit = sizeLimit;
+        this.countLimit = countLimit;
+        this.stats = stats;
+        StartThread.start(this::load);
+    }
+
+    /**
+     * 按顺序回放所有段文件重建索引，加载完成前的读写都会等待
+     */
+    private void load() {
+        // 段文件末尾写了一半的记录在 replay 时截掉，这里只需要清理流式写入留下的临时文件
+        Utils.deleteStaleTempFiles(cacheDir, (dir, name) -> name.endsWith(TEMP_SUFFIX));
+        lru.lock.lock();
+        try {
+            File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    long id = Long.parseLong(name.substring(0,
+                            name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, file));
+                }
+            }
+            for (Segment segment : segments.values()) {
+                replay(segment);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                activeSegment = newSegment();
+                trimToLimits(0);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            lru.lock.unlock();
+            loaded.countDown();
+        }
+        reportExpiring();
+    }
+
+    private void replay(Segment segment) throws IOException {
+        long fileLength = segment.file.length();
+        long position = 0;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.file)));
+        try {
+            while (position + RECORD_HEAD_SIZE <= fileLength) {
+                int keyLength = in.readInt();
+                long entryLength = in.readLong();
+                long recordSize = RECORD_HEAD_SIZE + keyLength + Math.max(entryLength, 0);
+                if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH || entryLength < TOMBSTONE
+                        || position + recordSize > fileLength) {
+                    // 写到一半的记录
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                String key = new String(keyBytes, "UTF-8");
+                removeEntry(key);
+                if (entryLength == TOMBSTONE) {
+                    segment.deadBytes += recordSize;
+                } else {
+                    // 顺序读取时顺便取出文件头中的到期时间
+                    byte[] head = new byte[(int) Math.min(Header.SIZE, entryLength)];
+                    in.readFully(head);
+                    addEntry(key, new LogEntry(key, segment,
+                            position + RECORD_HEAD_SIZE + keyLength, entryLength, recordSize,
+                            Header.expireTimeOf(head, head.length)));
+                    Utils.skipFully(in, entryLength - head.length);
+                }
+                position += recordSize;
+            }
+        } finally {
+            in.close();
+        }
+        segment.truncate(position);
+    }
+
+    private void awaitLoaded() throws IOException {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void write(String key, byte[] header, byte[] value) throws IOException {
+        awaitLoaded();
+        byte[] keyBytes = encodeKey(key);
+        long entryLength = header.length + value.length;
+        long recordSize = RECORD_HEAD_SIZE + keyBytes.length + entryLength;
+        lru.lock.lock();
+        try {
+            lru.drainReadBuffers();
+            if (removeEntry(key) == null && !admit(key, recordSize)) {
+                return;
+            }
+            trimToLimits(recordSize);
+            long position = append(keyBytes, entryLength, header, value);
+            addEntry(key, new LogEntry(key, activeSegment,
+                    position + RECORD_HEAD_SIZE + keyBytes.length, entryLength, recordSize,
+                    Header.expireTimeOf(header, header.length)));
+            rollIfFull();
+            sync();
+        } finally {
+            lru.lock.unlock();
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * 整批记录在一次加锁中按总大小淘汰后依次追加；段文件只能顺序追加，所以不并行写入
+     */
+    @Override
+    public void writeAll(List<StoredEntry> entries) throws IOException {
+        awaitLoaded();
+        byte[][] keyBytes = new byte[entries.size()][];
+        long totalSize = 0;
+        for (int i = 0; i < keyBytes.length; i++) {
+            StoredEntry entry = entries.get(i);
+            keyBytes[i] = encodeKey(entry.key);
+            totalSize += RECORD_HEAD_SIZE + keyBytes[i].length
+                    + entry.header.length + entry.value.length;
+        }
+        lru.lock.lock();
+        try {
+            lru.drainReadBuffers();
+            for (StoredEntry entry : entries) {
+                removeEntry(entry.key);
+            }
+            trimToLimits(entries.size(), totalSize);
+            for (int i = 0; i < keyBytes.length; i++) {
+                StoredEntry entry = entries.get(i);
+                long entryLength = entry.header.length + entry.value.length;
+                long recordSize = RECORD_HEAD_SIZE + keyBytes[i].length + entryLength;
+                long position = append(keyBytes[i], entryLength, entry.header, entry.value);
+                addEntry(entry.key, new LogEntry(entry.key, activeSegment,
+                        position + RECORD_HEAD_SIZE + keyBytes[i].length, entryLength,
+                        recordSize, Header.expireTimeOf(entry.header, entry.header.length)));
+                rollIfFull();
+            }
+            sync();
+        } finally {
+            lru.lock.unlock();
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * 先把数据写入临时文件，得到长度后再复制到段文件末尾，复制期间其他写入需要等待
+     */
+    @Override
+    public long writeStream(String key, byte[] header, InputStream in) throws IOException {
+        awaitLoaded();
+        byte[] keyBytes = encodeKey(key);
+        File tmp = File.createTempFile("stream", TEMP_SUFFIX, cacheDir);
+        try {
+            // 临时文件只是复制的来源，写入磁盘的是段文件
+            long length = Utils.writeStream(tmp, header, in, false);
+            long entryLength = header.length + length;
+            long recordSize = RECORD_HEAD_SIZE + keyBytes.length + entryLength;
+            FileInputStream source = new FileInputStream(tmp);
+            lru.lock.lock();
+            try {
+                lru.drainReadBuffers();
+                removeEntry(key);
+                trimToLimits(recordSize);
+                long position = append(keyBytes, entryLength);
+                try {
+                    transferFully(source.getChannel(), 0, entryLength);
+                } catch (IOException e) {
+                    // 丢弃复制了一半的记录
+                    activeSegment.truncate(position);
+                    throw e;
+                }
+                addEntry(key, new LogEntry(key, activeSegment,
+                        position + RECORD_HEAD_SIZE + keyBytes.length, entryLength, recordSize,
+                        Header.expireTimeOf(header, header.length)));
+                rollIfFull();
+                sync();
+            } finally {
+                lru.lock.unlock();
+                source.close();
+            }
+            compactIfNeeded();
+            return length;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * 返回的记录持有段文件的引用，关闭记录前段文件不会被关闭或删除；不持有锁，可以在其他线程关闭
+     */
+    @Override
+    public Record open(String key) throws IOException {
+        awaitLoaded();
+        LogEntry entry = index.get(key);
+        while (entry != null && !entry.segment.retain()) {
+            // 段文件刚被合并删除时记录已经移到新的段文件，重新查一次；仍是同一条记录说明已经关闭
+            LogEntry moved = index.get(key);
+            entry = moved != entry ? moved : null;
+        }
+        if (entry == null) {
+            return null;
+        }
+        lru.recordAccess(entry);
+        Segment segment = entry.segment;
+        return new Record(segment.channel, entry.offset, entry.length, segment::release);
+    }
+
+    @Override
+    public File file(String key) {
+        return null;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        try {
+            awaitLoaded();
+            lru.lock.lock();
+            try {
+                if (removeEntry(key) == null) {
+                    return false;
+                }
+                appendTombstone(key.getBytes("UTF-8"));
+                rollIfFull();
+            } finally {
+                lru.lock.unlock();
+            }
+            compactIfNeeded();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * id 就是 key
+     */
+    @Override
+    public boolean removeExpiredById(String id) {
+        return removeExpired(id);
+    }
+
+    @Override
+    public void setExpiryListener(ExpiryListener listener) {
+        expiryListener = listener;
+        if (loaded.getCount() == 0) {
+            StartThread.start(this::reportExpiring);
+        }
+    }
+
+    /**
+     * 把索引中设置了到期时间的记录交给 expiryListener，加载完成后在后台线程调用
+     */
+    private void reportExpiring() {
+        ExpiryListener listener = expiryListener;
+        if (listener == null) {
+            return;
+        }
+        List<LogEntry> entries;
+        lru.lock.lock();
+        try {
+            entries = lru.snapshot();
+        } finally {
+            lru.lock.unlock();
+        }
+        for (LogEntry entry : entries) {
+            if (entry.expireTime != Utils.NEVER_EXPIRE) {
+                listener.onIndexed(entry.key, entry.expireTime);
+            }
+        }
+    }
+
+    @Override
+    public boolean removeExpired(String key) {
+        try {
+            awaitLoaded();
+            lru.lock.lock();
+            try {
+                LogEntry entry = index.get(key);
+                if (entry == null) {
+                    return false;
+                }
+                Header header = Header.read(new Record(entry.segment.channel, entry.offset,
+                        entry.length, () -> { }));
+                if (header == null || !Utils.isDue(header.expireTime)) {
+                    return false;
+                }
+                removeEntry(key);
+                appendTombstone(key.getBytes("UTF-8"));
+                rollIfFull();
+            } finally {
+                lru.lock.unlock();
+            }
+            compactIfNeeded();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public void clear() {
+        try {
+            awaitLoaded();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        lru.lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            index.clear();
+            lru.clear();
+            liveSize = 0;
+            activeSegment = newSegment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lru.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            awaitLoaded();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        lru.lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lru.lock.unlock();
+        }
+    }
+
+    private void addEntry(String key, LogEntry entry) {
+        index.put(key, entry);
+        lru.add(entry);
+        liveSize += entry.recordSize;
+    }
+
+    private LogEntry removeEntry(String key) {
+        LogEntry entry = index.remove(key);
+        if (entry != null) {
+            lru.remove(entry);
+            entry.segment.deadBytes += entry.recordSize;
+            liveSize -= entry.recordSize;
+        }
+        return entry;
+    }
+
+    /**
+     * 需要为新 key 淘汰时先经过 W-TinyLFU 的准入，没有通过时不写入，算作淘汰了这条新记录，
+     * 调用方需持有 lru.lock
+     */
+    private boolean admit(String key, long recordSize) {
+        if ((index.size() + 1 <= countLimit && liveSize + recordSize <= sizeLimit)
+                || lru.admit(key.hashCode())) {
+            return true;
+        }
+        Sample sample = stats.start(AppCache.Operation.EVICT);
+        sample.outcome = AppCache.Outcome.EVICTED;
+        sample.finish();
+        return false;
+    }
+
+    /**
+     * 淘汰最久未使用的记录，直到可以再放入 recordSize 大小的记录，调用方需持有 lru.lock
+     */
+    private void trimToLimits(long recordSize) throws IOException {
+        trimToLimits(recordSize > 0 ? 1 : 0, recordSize);
+    }
+
+    /**
+     * 淘汰最久未使用的记录，直到可以再放入 extraCount 条共 extraSize 大小的记录，调用方需持有 lru.lock
+     */
+    private void trimToLimits(int extraCount, long extraSize) throws IOException {
+        LogEntry eldest;
+        while ((index.size() + extraCount > countLimit || liveSize + extraSize > sizeLimit)
+                && (eldest = lru.eldest()) != null) {
+            Sample sample = stats.start(AppCache.Operation.EVICT);
+            String key = eldest.key;
+            removeEntry(key);
+            appendTombstone(key.getBytes("UTF-8"));
+            sample.outcome = AppCache.Outcome.EVICTED;
+            sample.finish();
+        }
+    }
+
+    /**
+     * 回放时 key 为空或超过 {@link #MAX_KEY_LENGTH} 的记录会被当作写了一半，它和之后的记录都会丢失，
+     * 所以在追加前拒绝
+     */
+    private static byte[] encodeKey(String key) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        if (keyBytes.length == 0 || keyBytes.length > MAX_KEY_LENGTH) {
+            throw new IOException("invalid key length: " + keyBytes.length);
+        }
+        return keyBytes;
+    }
+
+    private void appendTombstone(byte[] keyBytes) throws IOException {
+        append(keyBytes, TOMBSTONE);
+        activeSegment.deadBytes += RECORD_HEAD_SIZE + keyBytes.length;
+    }
+
+    /**
+     * 在当前段文件末尾追加一条记录
+     *
+     * @return 记录在段文件中的位置
+     */
+    private long append(byte[] keyBytes, long entryLength, byte[]... entry) throws IOException {
+        Segment segment = activeSegment;
+        ByteBuffer[] buffers = new ByteBuffer[2 + entry.length];
+        buffers[0] = ByteBuffer.allocate(RECORD_HEAD_SIZE)
+                .putInt(keyBytes.length)
+                .putLong(entryLength);
+        buffers[0].flip();
+        buffers[1] = ByteBuffer.wrap(keyBytes);
+        long total = RECORD_HEAD_SIZE + keyBytes.length;
+        for (int i = 0; i < entry.length; i++) {
+            buffers[2 + i] = ByteBuffer.wrap(entry[i]);
+            total += entry[i].length;
+        }
+        long position = segment.size;
+        try {
+            long written = 0;
+            while (written < total) {
+                written += segment.channel.write(buffers);
+            }
+        } catch (IOException e) {
+            // 丢弃写了一半的记录
+            segment.truncate(position);
+            throw e;
+        }
+        segment.size += total;
+        return position;
+    }
+
+    private void rollIfFull() throws IOException {
+        if (activeSegment.size >= SEGMENT_SIZE) {
+            activeSegment.channel.force(false);
+            activeSegment = newSegment();
+        }
+    }
+
+    /**
+     * 把追加到当前段文件的记录写入磁盘，写满的段文件在切换时已经写入；调用方需持有 lru.lock
+     */
+    private void sync() throws IOException {
+        activeSegment.channel.force(false);
+    }
+
+    private Segment newSegment() throws IOException {
+        long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment segment = new Segment(id, new File(cacheDir,
+                String.format(Locale.US, "%010d%s", id, SEGMENT_SUFFIX)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void compactIfNeeded() {
+        if (compacting.compareAndSet(false, true)) {
+            StartThread.start(() -> {
+                try {
+                    Segment segment;
+                    while ((segment = nextSegmentToCompact()) != null) {
+                        compact(segment);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    private Segment nextSegmentToCompact() {
+        lru.lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment && segment.size > 0
+                        && segment.deadBytes > segment.size * COMPACT_RATIO) {
+                    return segment;
+                }
+            }
+            return null;
+        } finally {
+            lru.lock.unlock();
+        }
+    }
+
+    /**
+     * 把段文件中仍然有效的记录复制到当前段文件末尾，然后删除该段文件
+     */
+    private void compact(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.file)));
+        try {
+            long position = 0;
+            while (position < segment.size) {
+                int keyLength = in.readInt();
+                long entryLength = in.readLong();
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                String key = new String(keyBytes, "UTF-8");
+                long entryOffset = position + RECORD_HEAD_SIZE + keyLength;
+                lru.lock.lock();
+                try {
+                    LogEntry entry = index.get(key);
+                    if (entryLength == TOMBSTONE) {
+                        // 更早的段文件中可能还有该 key 的旧记录，需要保留删除标记
+                        if (entry == null && segments.firstKey() < segment.id) {
+                            appendTombstone(keyBytes);
+                        }
+                    } else if (entry != null && entry.segment == segment
+                            && entry.offset == entryOffset) {
+                        long newPosition = append(keyBytes, entryLength);
+                        try {
+                            transferFully(segment.channel, entryOffset, entryLength);
+                        } catch (IOException e) {
+                            // 丢弃复制了一半的记录
+                            activeSegment.truncate(newPosition);
+                            throw e;
+                        }
+                        // 记录位置不可变，换成新的 LogEntry 并保留原来的访问顺序
+                        LogEntry moved = new LogEntry(key, activeSegment,
+                                newPosition + RECORD_HEAD_SIZE + keyLength, entryLength,
+                                entry.recordSize, entry.expireTime);
+                        index.put(key, moved);
+                        lru.replace(entry, moved);
+                        rollIfFull();
+                    }
+                } finally {
+                    lru.lock.unlock();
+                }
+                Utils.skipFully(in, Math.max(entryLength, 0));
+                position = entryOffset + Math.max(entryLength, 0);
+            }
+        } finally {
+            in.close();
+        }
+        lru.lock.lock();
+        try {
+            // 复制出的记录写入磁盘后才能删除原来的段文件
+            sync();
+            segments.remove(segment.id);
+        } finally {
+            lru.lock.unlock();
+        }
+        // 还在读取的记录关闭后才真正删除
+        segment.delete();
+    }
+
+    /**
+     * 把 source 中的数据复制到当前段文件末尾，调用前已经追加了记录的 key 部分
+     */
+    private void transferFully(FileChannel source, long position, long count)
+            throws IOException {
+        Segment segment = activeSegment;
+        long transferred = 0;
+        while (transferred < count) {
+            long n = source.transferTo(position + transferred, count - transferred,
+                    segment.channel);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            transferred += n;
+        }
+        segment.size += count;
+    }
+
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        /**
+         * LogStore 本身持有一个引用，每个打开的记录各持有一个，减到 0 时关闭文件
+         */
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private volatile boolean deleted;
+        private long size;
+        private long deadBytes;
+
+        private Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+            channel = raFile.getChannel();
+            size = raFile.length();
+            channel.position(size);
+        }
+
+        private void truncate(long position) throws IOException {
+            channel.truncate(position);
+            channel.position(position);
+            size = position;
+        }
+
+        /**
+         * @return 段文件已经关闭或删除时返回 false
+         */
+        private boolean retain() {
+            while (true) {
+                int count = refs.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() throws IOException {
+            if (refs.decrementAndGet() == 0) {
+                channel.close();
+                if (deleted) {
+                    file.delete();
+                }
+            }
+        }
+
+        /**
+         * 释放 LogStore 的引用，打开的记录都关闭后才关闭文件
+         */
+        private void close() throws IOException {
+            release();
+        }
+
+        /**
+         * 同 {@link #close}，关闭后删除文件
+         */
+        private void delete() throws IOException {
+            deleted = true;
+            release();
+        }
+    }
+
+    private static class LogEntry extends AccessNode {
+        private final String key;
+        private final Segment segment;
+        private final long offset;
+        private final long length;
+        private final long recordSize;
+        private final long expireTime;
+
+        private LogEntry(String key, Segment segment, long offset, long length,
+                         long recordSize, long expireTime) {
+            super(key.hashCode());
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+            this.expireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogStoreTest {
+    private static final int VALUE_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysSegmentsAfterReopen() throws Exception {
+        File dir = folder.getRoot();
+        LogStore store = open(dir);
+        put(store, "a", value(1, 0));
+        put(store, "b", value(2, 0));
+        put(store, "a", value(1, 1));
+        assertTrue(store.remove("b"));
+        store.close();
+
+        store = open(dir);
+        assertArrayEquals(value(1, 1), read(store, "a"));
+        assertNull(store.open("b"));
+        store.close();
+    }
+
+    @Test
+    public void tornSegmentTailIsTruncated() throws Exception {
+        File dir = folder.getRoot();
+        LogStore store = open(dir);
+        put(store, "a", value(1, 0));
+        put(store, "b", value(2, 0));
+        store.close();
+
+        // 模拟进程在追加记录时被杀死：记录头和 key 已经写入，数据只写了一部分
+        File segment = new File(dir, "0000000000.seg");
+        long length = segment.length();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(segment, true));
+        out.writeInt(1);
+        out.writeLong(VALUE_SIZE);
+        out.write('c');
+        out.write(new byte[100]);
+        out.close();
+
+        store = open(dir);
+        assertArrayEquals(value(1, 0), read(store, "a"));
+        assertArrayEquals(value(2, 0), read(store, "b"));
+        assertNull(store.open("c"));
+        assertEquals(length, segment.length());
+        put(store, "c", value(3, 0));
+        store.close();
+
+        store = open(dir);
+        assertArrayEquals(value(3, 0), read(store, "c"));
+        store.close();
+    }
+
+    @Test
+    public void oversizedKeyIsRejectedBeforeAppending() throws IOException {
+        File dir = folder.getRoot();
+        LogStore store = open(dir);
+        char[] chars = new char[64 * 1024 + 1];
+        Arrays.fill(chars, 'k');
+        try {
+            put(store, new String(chars), value(1, 0));
+            fail("oversized key written");
+        } catch (IOException expected) {
+            // 回放时无法区分过长的 key 和写了一半的记录
+        }
+        put(store, "b", value(2, 0));
+        store.close();
+
+        store = open(dir);
+        assertArrayEquals(value(2, 0), read(store, "b"));
+        store.close();
+    }
+
+    @Test
+    public void compactsSegmentWithMostlyDeadRecords() throws Exception {
+        File dir = folder.getRoot();
+        LogStore store = open(dir);
+        // 16 条记录写满第一个段文件，之后的记录写入新的段文件
+        for (int i = 0; i < 20; i++) {
+            put(store, "key" + i, value(i, 0));
+        }
+        File first = new File(dir, "0000000000.seg");
+        assertTrue(first.exists());
+        for (int i = 0; i < 10; i++) {
+            put(store, "key" + i, value(i, 1));
+        }
+        assertTrue(store.remove("key10"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (first.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse("segment not compacted", first.exists());
+        assertLatest(store);
+        store.close();
+
+        store = open(dir);
+        assertLatest(store);
+        store.close();
+    }
+
+    private static void assertLatest(LogStore store) throws IOException {
+        for (int i = 0; i < 20; i++) {
+            if (i == 10) {
+                assertNull(store.open("key10"));
+            } else {
+                assertArrayEquals("key" + i, value(i, i < 10 ? 1 : 0), read(store, "key" + i));
+            }
+        }
+    }
+
+    private static LogStore open(File dir) {
+        return new LogStore(dir, Long.MAX_VALUE, Integer.MAX_VALUE, new StatsRecorder(),
+                AppCache.EvictionPolicy.LRU);
+    }
+
+    private static byte[] value(int key, int version) {
+        byte[] value = new byte[VALUE_SIZE];
+        new Random(key * 31 + version).nextBytes(value);
+        return value;
+    }
+
+    private static void put(LogStore store, String key, byte[] value) throws IOException {
+        store.write(key, Header.encode(0, Utils.NEVER_EXPIRE, value), value);
+    }
+
+    private static byte[] read(LogStore store, String key) throws IOException {
+        Record record = store.open(key);
+        assertNotNull(key, record);
+        try {
+            return Header.read(record).readValue(record);
+        } finally {
+            record.close();
+        }
+    }
+}
@@ -0,0 +1,1575 @@
+import com.bubiu.counter.entity.StartThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 缓存管理器
+ * <p>
+ * 读取不加锁；写入和删除文件时持有 key 所在分段的锁，只在更新索引、选择淘汰的文件时短暂持有
+ * lru.lock。加锁顺序总是先分段锁再 lru.lock，被淘汰的文件在释放 lru.lock 之后才删除
+ *
+ * @author 杨福海（michael） www.yangfuhai.com
+ * @version 1.0
+ */
+class Manager implements Store {
+    /**
+     * 索引日志，依次记录每个文件的写入和删除，启动时顺序读取一遍即可恢复索引和访问顺序
+     * <p>
+     * 格式：magic(4) version(4)，之后每条记录为 op(1) name(UTF)，
+     * op 为 {@link #OP_PUT} 时再跟 size(8) expireTime(8)
+     */
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    /**
+     * 所有者正常关闭、日志包含目录中所有文件时写入，启动时删除；不存在时日志可能缺少最后的记录
+     */
+    private static final String JOURNAL_CLEAN_FILE = "journal.clean";
+    /**
+     * 分层目录下已经没有平铺文件时写入，内容为子目录的层数
+     */
+    private static final String LAYOUT_FILE = "layout";
+    /**
+     * 多进程共享的索引，见 {@link SharedIndex}
+     */
+    private static final String SHARED_INDEX_FILE = "shared_index";
+    /**
+     * 子目录名为前缀加两位十六进制数，和缓存文件名（key 的 hashCode）区分开
+     */
+    private static final String SHARD_PREFIX = "d";
+    private static final String[] SHARD_NAMES = new String[256];
+
+    static {
+        for (int i = 0; i < SHARD_NAMES.length; i++) {
+            SHARD_NAMES[i] = String.format(Locale.US, "%s%02x", SHARD_PREFIX, i);
+        }
+    }
+
+    private static final int JOURNAL_MAGIC = 0x41434A4C;
+    private static final int JOURNAL_VERSION = 2;
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    /**
+     * 冗余记录超过该值且多于有效记录时重写日志
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    /**
+     * 读取次数超过该值且多于缓存条数时按访问顺序重写日志，保存读取后的访问顺序
+     */
+    private static final int RECENCY_SNAPSHOT_THRESHOLD = 1000;
+    private static final int LOCK_STRIPES = 64;
+    /**
+     * 写入时先写到该目录下的临时文件，写完后改名为缓存文件
+     */
+    private static final String TEMP_DIR = "tmp";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final AtomicLong cacheSize;
+    private final AtomicInteger cacheCount;
+    private final long sizeLimit;
+    private final int countLimit;
+    /**
+     * 文件名到缓存文件的索引，修改时需持有 lru.lock
+     */
+    private final ConcurrentHashMap<String, CacheFile> index = new ConcurrentHashMap<>();
+    /**
+     * 按访问顺序排列的缓存文件，最久未使用的文件排在最前面；journalWriter 和 redundantOpCount
+     * 也由 lru.lock 保护
+     */
+    private final AccessOrder<CacheFile> lru;
+    /**
+     * 按文件名分段的锁，写入和删除文件时持有写锁，打开文件时持有读锁，不会打开写了一半的文件
+     */
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[LOCK_STRIPES];
+    private final AtomicBoolean journalFlushScheduled = new AtomicBoolean();
+    /**
+     * 重写日志期间持有，同一时间只有一个线程重写
+     */
+    private final ReentrantLock journalRebuildLock = new ReentrantLock();
+    private File cacheDir;
+    private DataOutputStream journalWriter;
+    private int redundantOpCount;
+    private final int shardLevels;
+    /**
+     * 缓存目录下可能还有没移入子目录的平铺文件
+     */
+    private volatile boolean legacyFiles;
+    private final File tempDir;
+    /**
+     * 索引已经和磁盘上的缓存文件核对过；只读取日志时可能缺少记录，不能确定 key 不存在
+     */
+    private volatile boolean indexLoaded;
+    private volatile ExpiryListener expiryListener;
+    private final AtomicBoolean scanning = new AtomicBoolean();
+    /**
+     * 其他进程使用过目录，它写入的文件不在索引中，等它退出后需要重新扫描
+     */
+    private volatile boolean foreignWrites;
+    /**
+     * 多进程共享的索引，不为 null 时不使用 index、lru 和日志
+     */
+    private final SharedIndex shared;
+    /**
+     * 不使用共享索引时持有的目录锁，只有目录的所有者读写日志
+     */
+    private final DirectoryLock dirLock;
+    private final StatsRecorder stats;
+
+    Manager(File cacheDir, long sizeLimit, int countLimit, StatsRecorder stats,
+            AppCache.EvictionPolicy policy, int shardLevels, boolean multiProcess) {
+        this.cacheDir = cacheDir;
+        this.stats = stats;
+        this.shardLevels = shardLevels;
+        tempDir = new File(cacheDir, TEMP_DIR);
+        tempDir.mkdirs();
+        // 崩溃时没写完的数据只会留在临时目录中，启动时清理即可，不用检查缓存文件的内容
+        StartThread.start(() -> Utils.deleteStaleTempFiles(tempDir, null));
+        lru = new AccessOrder<>(policy, countLimit);
+        this.sizeLimit = sizeLimit;
+        this.countLimit = countLimit;
+        cacheSize = new AtomicLong();
+        cacheCount = new AtomicInteger();
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        legacyFiles = shardLevels > 0 && !isLayoutMigrated() && hasFlatFiles();
+        if (shardLevels > 0 && !legacyFiles) {
+            writeLayout();
+        }
+        shared = multiProcess ? openShared() : null;
+        dirLock = shared == null ? openDirectoryLock() : null;
+        if (shared != null) {
+            indexLoaded = true;
+            return;
+        }
+        boolean restored = false;
+        boolean clean = false;
+        lru.lock.lock();
+        try {
+            // 其他进程同时追加同一份日志时记录会交错，只有目录的所有者使用日志
+            if (ownsJournal()) {
+                clean = new File(cacheDir, JOURNAL_CLEAN_FILE).delete();
+                restored = readJournal();
+            }
+            if (!restored) {
+                clearIndex();
+            }
+        } finally {
+            lru.lock.unlock();
+        }
+        if (restored && journalWriter == null) {
+            // 最后一条记录没有写完整，重写日志去掉它之后才能继续追加
+            rebuildJournal();
+        }
+        if (restored && clean) {
+            indexLoaded = true;
+            return;
+        }
+        // 上次没有正常关闭时日志中的索引先用着，后台扫描目录补上缺少的记录
+        calculateCacheSizeAndCacheCount();
+    }
+
+    /**
+     * @return 打开失败时返回 null，按不是所有者处理
+     */
+    private DirectoryLock openDirectoryLock() {
+        try {
+            return new DirectoryLock(cacheDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private boolean ownsJournal() {
+        return dirLock != null && dirLock.isOwner();
+    }
+
+    /**
+     * 索引和目录核对过，并且没有其他进程在使用目录时，不在索引中的 key 一定不存在
+     */
+    private boolean isMissDefinite() {
+        if (!indexLoaded || !ownsJournal()) {
+            return false;
+        }
+        if (dirLock.othersActive(false)) {
+            foreignWrites = true;
+            return false;
+        }
+        if (foreignWrites) {
+            // 其他进程已经退出，重新扫描目录加入它写入的文件
+            if (scanning.compareAndSet(false, true)) {
+                foreignWrites = false;
+                indexLoaded = false;
+                scanInBackground();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 打开共享索引，索引还没建立或有进程在修改期间退出时扫描目录重新建立
+     *
+     * @return 打开失败时返回 null，退回到进程内的索引
+     */
+    private SharedIndex openShared() {
+        SharedIndex index;
+        try {
+            index = new SharedIndex(new File(cacheDir, SHARED_INDEX_FILE), countLimit);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        try {
+            index.lock();
+        } catch (IOException e) {
+            e.printStackTrace();
+            index.close();
+            return null;
+        }
+        try {
+            if (!index.isValid()) {
+                rebuildShared(index);
+            }
+        } finally {
+            index.unlock();
+        }
+        return index;
+    }
+
+    /**
+     * 扫描缓存目录建立共享索引，访问时间取文件的修改时间，调用方需持有共享索引的锁
+     */
+    private void rebuildShared(SharedIndex index) {
+        index.reset();
+        List<ScannedFile> files;
+        try {
+            files = scanFiles();
+        } catch (IOException e) {
+            e.printStackTrace();
+            files = Collections.emptyList();
+        }
+        for (ScannedFile scanned : files) {
+            Integer id = sharedId(scanned.file.getName());
+            if (id != null && index.count() < index.maxEntries()) {
+                index.put(id, scanned.size, scanned.lastModified);
+            }
+        }
+        if (legacyFiles && !containsFlatFile(files)) {
+            legacyFiles = false;
+            writeLayout();
+        }
+        index.markBuilt();
+    }
+
+    /**
+     * 持有共享索引的锁，其他进程在修改期间退出时先重新建立索引
+     */
+    private void lockShared() throws IOException {
+        shared.lock();
+        if (!shared.isValid()) {
+            rebuildShared(shared);
+        }
+    }
+
+    /**
+     * @return 缓存文件名对应的共享索引 id，文件名不是 key 的 hashCode 时返回 null
+     */
+    private Integer sharedId(String name) {
+        try {
+            return Integer.valueOf(name);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 把刚改名的文件加入共享索引，需要时先淘汰，调用方需持有共享索引的锁
+     *
+     * @param evict 为 false 时只在索引没有空位时淘汰，空间已经由 {@link #reserve} 腾出
+     */
+    private void putShared(File file, boolean evict) {
+        int id = Integer.parseInt(file.getName());
+        long size = calculateSize(file);
+        shared.remove(id);
+        int maxCount = Math.min(countLimit, shared.maxEntries());
+        while ((evict && (shared.count() + 1 > maxCount || shared.size() + size > sizeLimit))
+                || shared.count() >= shared.maxEntries()) {
+            if (!evictShared()) {
+                break;
+            }
+        }
+        shared.put(id, size, System.currentTimeMillis());
+    }
+
+    /**
+     * 淘汰取样中最久未访问的文件，持有锁时删除，其他进程不会在删除前重新写入同一个文件
+     *
+     * @return 索引为空时返回 false
+     */
+    private boolean evictShared() {
+        int slot = shared.sampleEldest();
+        if (slot == SharedIndex.NONE) {
+            return false;
+        }
+        int eldest = shared.idAt(slot);
+        Sample sample = stats.start(AppCache.Operation.EVICT);
+        shared.remove(eldest);
+        deleteFile(String.valueOf(eldest));
+        sample.outcome = AppCache.Outcome.EVICTED;
+        sample.finish();
+        return true;
+    }
+
+    /**
+     * 从索引日志恢复 index、cacheSize 和 cacheCount，调用方需持有 lru.lock；
+     * 最后一条记录不完整时不打开 journalWriter，由调用方重写日志
+     *
+     * @return 日志不存在或已损坏时返回 false，需要重新扫描缓存目录
+     */
+    private boolean readJournal() {
+        File journal = new File(cacheDir, JOURNAL_FILE);
+        if (!journal.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        int opCount = 0;
+        boolean truncated = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(journal), 64 * 1024));
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION) {
+                return false;
+            }
+            int op;
+            while ((op = in.read()) != -1) {
+                String name = in.readUTF();
+                if (op == OP_PUT) {
+                    long size = in.readLong();
+                    long expireTime = in.readLong();
+                    unlink(name);
+                    link(new CacheFile(fileFor(name), size, expireTime));
+                } else if (op == OP_REMOVE) {
+                    unlink(name);
+                } else {
+                    return false;
+                }
+                opCount++;
+            }
+        } catch (EOFException e) {
+            // 最后一条记录没有写完整，丢弃即可
+            truncated = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        redundantOpCount = opCount - cacheCount.get();
+        if (!truncated) {
+            openJournalWriter();
+        }
+        return true;
+    }
+
+    private void openJournalWriter() {
+        try {
+            journalWriter = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(cacheDir, JOURNAL_FILE), true)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 按 LRU 顺序把当前索引重新写成一份只有 put 记录的日志，调用方不能持有 lru.lock。
+     * 只在锁内复制访问顺序，写文件时不持锁；期间追加的记录先缓存在内存中，换上新日志后再写入
+     */
+    private void rebuildJournal() {
+        journalRebuildLock.lock();
+        try {
+            List<CacheFile> files;
+            ByteArrayOutputStream pending = new ByteArrayOutputStream();
+            lru.lock.lock();
+            try {
+                closeJournalWriter();
+                journalWriter = new DataOutputStream(pending);
+                redundantOpCount = 0;
+                files = lru.snapshot();
+                // 读取只更新内存中的访问顺序，不修改文件；从这份快照起重新计数
+                lru.resetAppliedAccesses();
+            } finally {
+                lru.lock.unlock();
+            }
+            boolean written = writeJournal(files);
+            lru.lock.lock();
+            try {
+                journalWriter = null;
+                if (written) {
+                    openJournalWriter();
+                    journalPending(pending);
+                }
+            } finally {
+                lru.lock.unlock();
+            }
+        } finally {
+            journalRebuildLock.unlock();
+        }
+    }
+
+    /**
+     * 写到临时文件后改名替换日志
+     */
+    private boolean writeJournal(List<CacheFile> files) {
+        File journalTmp = new File(cacheDir, JOURNAL_FILE_TMP);
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fileOut = new FileOutputStream(journalTmp);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+            for (CacheFile cacheFile : files) {
+                out.writeByte(OP_PUT);
+                out.writeUTF(cacheFile.name);
+                out.writeLong(cacheFile.size);
+                out.writeLong(cacheFile.expireTime);
+            }
+            out.flush();
+            // 新日志写入磁盘后再替换旧日志
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+            if (!journalTmp.renameTo(new File(cacheDir, JOURNAL_FILE))) {
+                throw new IOException("can't rename " + journalTmp);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            journalTmp.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 把重写期间缓存的记录追加到新日志，调用方需持有 lru.lock
+     */
+    private void journalPending(ByteArrayOutputStream pending) {
+        if (journalWriter == null || pending.size() == 0) {
+            return;
+        }
+        try {
+            pending.writeTo(journalWriter);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeJournalWriter();
+            new File(cacheDir, JOURNAL_FILE).delete();
+        }
+    }
+
+    private void closeJournalWriter() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journalWriter = null;
+        }
+    }
+
+    /**
+     * 追加一条日志记录，调用方需持有 lru.lock；日志写入失败时删除日志，下次启动重新扫描
+     *
+     * @param cacheFile 写入的文件，为 null 时表示删除 name
+     */
+    private void journal(String name, CacheFile cacheFile) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.writeByte(cacheFile == null ? OP_REMOVE : OP_PUT);
+            journalWriter.writeUTF(name);
+            if (cacheFile != null) {
+                journalWriter.writeLong(cacheFile.size);
+                journalWriter.writeLong(cacheFile.expireTime);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeJournalWriter();
+            new File(cacheDir, JOURNAL_FILE).delete();
+        }
+    }
+
+    /**
+     * 把缓冲的日志记录写入文件，调用方需持有 lru.lock
+     *
+     * @return 冗余记录或未保存的读取过多，需要在释放 lru.lock 之后调用 {@link #rebuildJournal}
+     */
+    private boolean flushJournal() {
+        if (journalWriter == null) {
+            return false;
+        }
+        if ((redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= cacheCount.get()) || isRecencySnapshotDue()) {
+            return true;
+        }
+        try {
+            journalWriter.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeJournalWriter();
+            new File(cacheDir, JOURNAL_FILE).delete();
+        }
+        return false;
+    }
+
+    private boolean isRecencySnapshotDue() {
+        int accesses = lru.appliedAccesses();
+        return accesses >= RECENCY_SNAPSHOT_THRESHOLD && accesses >= cacheCount.get();
+    }
+
+    /**
+     * 在后台线程中写出日志，写入线程不必等待磁盘
+     */
+    private void scheduleJournalFlush() {
+        if (journalFlushScheduled.compareAndSet(false, true)) {
+            StartThread.start(() -> {
+                journalFlushScheduled.set(false);
+                boolean rebuild;
+                lru.lock.lock();
+                try {
+                    rebuild = flushJournal();
+                } finally {
+                    lru.lock.unlock();
+                }
+                if (rebuild) {
+                    rebuildJournal();
+                }
+            });
+        }
+    }
+
+    private boolean isJournalFile(String name) {
+        return name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP)
+                || name.equals(JOURNAL_CLEAN_FILE);
+    }
+
+    private boolean isShardDir(String name) {
+        return name.length() == SHARD_PREFIX.length() + 2 && name.startsWith(SHARD_PREFIX);
+    }
+
+    /**
+     * 缓存文件名是 key 的 hashCode，以数字或负号开头
+     */
+    private boolean isCacheFile(String name) {
+        char first = name.isEmpty() ? 0 : name.charAt(0);
+        return ((first >= '0' && first <= '9') || first == '-')
+                && !name.endsWith(TEMP_SUFFIX);
+    }
+
+    private boolean isLayoutMigrated() {
+        File layout = new File(cacheDir, LAYOUT_FILE);
+        if (!layout.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(layout));
+            return in.readInt() == shardLevels;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 记录平铺文件已经全部移入子目录，之后启动时不必再检查
+     */
+    private void writeLayout() {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(new File(cacheDir, LAYOUT_FILE)));
+            out.writeInt(shardLevels);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private boolean hasFlatFiles() {
+        String[] names = cacheDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (isCacheFile(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按分层目录的布局得到文件名对应的文件
+     */
+    private File fileFor(String name) {
+        if (shardLevels == 0) {
+            return new File(cacheDir, name);
+        }
+        int hash = name.hashCode();
+        hash ^= hash >>> 16;
+        File dir = cacheDir;
+        for (int i = 0; i < shardLevels; i++) {
+            dir = new File(dir, SHARD_NAMES[(hash >>> (8 * i)) & 0xFF]);
+        }
+        return new File(dir, name);
+    }
+
+    private void ensureParent(File file) {
+        File parent = file.getParentFile();
+        if (shardLevels > 0 && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+    }
+
+    /**
+     * 把平铺在缓存目录下的旧文件移入子目录，调用方需持有该文件的分段写锁
+     */
+    private void migrate(File file) {
+        if (!legacyFiles || file.exists()) {
+            return;
+        }
+        File legacy = new File(cacheDir, file.getName());
+        if (legacy.exists()) {
+            ensureParent(file);
+            if (!legacy.renameTo(file)) {
+                legacy.delete();
+            }
+        }
+    }
+
+    /**
+     * 删除文件名对应的文件，包括没有移入子目录的平铺文件，调用方需持有该文件的分段写锁
+     */
+    private boolean deleteFile(String name) {
+        boolean deleted = fileFor(name).delete();
+        if (legacyFiles) {
+            deleted |= new File(cacheDir, name).delete();
+        }
+        return deleted;
+    }
+
+    /**
+     * 扫描得到的缓存文件
+     */
+    private final class ScannedFile {
+        private final File file;
+        private final long lastModified;
+        private final long size;
+        /**
+         * 只在需要加入进程内索引时才读取文件头
+         */
+        private long expireTime = Utils.NEVER_EXPIRE;
+
+        private ScannedFile(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.size = calculateSize(file);
+        }
+    }
+
+    /**
+     * 扫描缓存目录下的平铺文件和所有子目录，各个子目录并行扫描
+     */
+    private List<ScannedFile> scanFiles() throws IOException {
+        File[] entries = cacheDir.listFiles();
+        List<ScannedFile> files = new ArrayList<>();
+        if (entries == null) {
+            return files;
+        }
+        List<Callable<List<ScannedFile>>> tasks = new ArrayList<>();
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (isCacheFile(name)) {
+                files.add(new ScannedFile(entry));
+            } else if (shardLevels > 0 && isShardDir(name)) {
+                tasks.add(() -> scanShard(entry, shardLevels - 1));
+            }
+        }
+        if (!tasks.isEmpty()) {
+            for (List<ScannedFile> shard : IoExecutor.invokeAll(tasks)) {
+                files.addAll(shard);
+            }
+        }
+        return files;
+    }
+
+    private boolean containsFlatFile(List<ScannedFile> files) {
+        for (ScannedFile scanned : files) {
+            if (cacheDir.equals(scanned.file.getParentFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<ScannedFile> scanShard(File dir, int depth) {
+        List<ScannedFile> files = new ArrayList<>();
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return files;
+        }
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (depth > 0 && isShardDir(name)) {
+                files.addAll(scanShard(entry, depth - 1));
+            } else if (depth == 0 && isCacheFile(name)) {
+                files.add(new ScannedFile(entry));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 扫描缓存目录和索引核对，计算 cacheSize和cacheCount，完成后写入新的日志；
+     * 索引中已有、磁盘上不存在的文件从索引中移除
+     */
+    private void calculateCacheSizeAndCacheCount() {
+        if (scanning.compareAndSet(false, true)) {
+            scanInBackground();
+        }
+    }
+
+    /**
+     * 调用方需先把 scanning 设为 true
+     */
+    private void scanInBackground() {
+        StartThread.start(() -> {
+            try {
+                reconcile();
+            } finally {
+                scanning.set(false);
+            }
+        });
+    }
+
+    private void reconcile() {
+        List<CacheFile> knownFiles;
+        lru.lock.lock();
+        try {
+            knownFiles = lru.snapshot();
+        } finally {
+            lru.lock.unlock();
+        }
+        List<ScannedFile> cachedFiles;
+        try {
+            cachedFiles = scanFiles();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        // 读取不修改文件，没有日志时只能按写入时间近似访问顺序
+        Collections.sort(cachedFiles, (lhs, rhs) ->
+                Long.compare(lhs.lastModified, rhs.lastModified));
+        // 不在索引中的文件要加入索引，在加锁之前读出文件头中的到期时间
+        Set<String> knownNames = new HashSet<>();
+        for (CacheFile cacheFile : knownFiles) {
+            knownNames.add(cacheFile.name);
+        }
+        for (ScannedFile cachedFile : cachedFiles) {
+            if (!knownNames.contains(cachedFile.file.getName())) {
+                cachedFile.expireTime = readExpireTime(cachedFile.file);
+            }
+        }
+        if (legacyFiles && !containsFlatFile(cachedFiles)) {
+            legacyFiles = false;
+            writeLayout();
+        }
+        lru.lock.lock();
+        try {
+            Set<String> scannedNames = new HashSet<>();
+            for (ScannedFile cachedFile : cachedFiles) {
+                scannedNames.add(cachedFile.file.getName());
+            }
+            // 扫描之前就在索引中、扫描期间没有重新写入的文件，磁盘上找不到说明已被删除
+            for (CacheFile cacheFile : knownFiles) {
+                if (!scannedNames.contains(cacheFile.name)
+                        && index.get(cacheFile.name) == cacheFile) {
+                    unlink(cacheFile.name);
+                }
+            }
+            // 索引中已有的文件比只在磁盘上扫描到的都要新，需要排在后面
+            List<CacheFile> recentFiles = lru.snapshot();
+            for (ScannedFile cachedFile : cachedFiles) {
+                if (!index.containsKey(cachedFile.file.getName())) {
+                    link(new CacheFile(cachedFile.file, cachedFile.size,
+                            cachedFile.expireTime));
+                }
+            }
+            for (CacheFile cacheFile : recentFiles) {
+                lru.remove(cacheFile);
+                lru.add(cacheFile);
+            }
+            indexLoaded = true;
+        } finally {
+            lru.lock.unlock();
+        }
+        if (ownsJournal()) {
+            rebuildJournal();
+        }
+        reportExpiring();
+    }
+
+    /**
+     * 清空索引，调用方需持有 lru.lock
+     */
+    private void clearIndex() {
+        index.clear();
+        lru.clear();
+        cacheSize.set(0);
+        cacheCount.set(0);
+    }
+
+    /**
+     * 调用方需持有 lru.lock
+     */
+    private void link(CacheFile cacheFile) {
+        index.put(cacheFile.name, cacheFile);
+        lru.add(cacheFile);
+        cacheSize.addAndGet(cacheFile.size);
+        cacheCount.incrementAndGet();
+    }
+
+    /**
+     * 调用方需持有 lru.lock
+     *
+     * @return 移除的文件；不在索引中时返回 null
+     */
+    private CacheFile unlink(String name) {
+        CacheFile cacheFile = index.remove(name);
+        if (cacheFile != null) {
+            lru.remove(cacheFile);
+            cacheSize.addAndGet(-cacheFile.size);
+            cacheCount.decrementAndGet();
+        }
+        return cacheFile;
+    }
+
+    /**
+     * 把写好的文件加入索引，调用方需持有该文件的分段锁
+     *
+     * @param evict 为 false 时不淘汰，空间已经由 {@link #reserve} 腾出
+     * @return 为腾出空间而移出索引的文件，需要在释放分段锁之后删除
+     */
+    private List<CacheFile> put(File file, boolean evict, long expireTime) {
+        CacheFile cacheFile = new CacheFile(file, calculateSize(file), expireTime);
+        List<CacheFile> evicted = new ArrayList<>();
+        lru.lock.lock();
+        try {
+            lru.drainReadBuffers();
+            // 覆盖已有的key时先扣除旧文件的大小，避免重复计数
+            CacheFile old = unlink(cacheFile.name);
+            if (old != null) {
+                redundantOpCount++;
+            }
+            boolean full = evict && (cacheCount.get() + 1 > countLimit
+                    || cacheSize.get() + cacheFile.size > sizeLimit);
+            if (full && old == null && !lru.admit(cacheFile.hash)) {
+                // 新文件没有通过 W-TinyLFU 的准入，直接淘汰它而不是已有的文件
+                Sample sample = stats.start(AppCache.Operation.EVICT);
+                evicted.add(cacheFile);
+                sample.outcome = AppCache.Outcome.EVICTED;
+                sample.finish();
+                return evicted;
+            }
+            CacheFile eldest;
+            while (full && (cacheCount.get() + 1 > countLimit
+                    || cacheSize.get() + cacheFile.size > sizeLimit)
+                    && (eldest = removeNext()) != null) {
+                evicted.add(eldest);
+            }
+            link(cacheFile);
+            journal(cacheFile.name, cacheFile);
+        } finally {
+            lru.lock.unlock();
+        }
+        scheduleJournalFlush();
+        return evicted;
+    }
+
+    /**
+     * 按整批的总大小淘汰一次，之后并行写入各个文件
+     */
+    @Override
+    public void writeAll(List<StoredEntry> entries) throws IOException {
+        delete(reserve(entries));
+        List<Callable<Void>> tasks = new ArrayList<>(entries.size());
+        for (StoredEntry entry : entries) {
+            tasks.add(() -> {
+                write(entry.key, entry.header, entry.value, false);
+                return null;
+            });
+        }
+        IoExecutor.invokeAll(tasks);
+    }
+
+    /**
+     * 为整批记录腾出空间，调用方不能持有分段锁
+     *
+     * @return 移出索引的文件，需要由调用方删除
+     */
+    private List<CacheFile> reserve(List<StoredEntry> entries) {
+        List<CacheFile> evicted = new ArrayList<>();
+        if (shared != null) {
+            reserveShared(entries);
+            return evicted;
+        }
+        lru.lock.lock();
+        try {
+            lru.drainReadBuffers();
+            int count = 0;
+            long size = 0;
+            for (StoredEntry entry : entries) {
+                size += entry.header.length + entry.value.length;
+                CacheFile old = index.get(newFile(entry.key).getName());
+                if (old != null) {
+                    size -= old.size;
+                } else {
+                    count++;
+                }
+            }
+            CacheFile eldest;
+            while ((cacheCount.get() + count > countLimit
+                    || cacheSize.get() + size > sizeLimit)
+                    && (eldest = removeNext()) != null) {
+                evicted.add(eldest);
+            }
+        } finally {
+            lru.lock.unlock();
+        }
+        return evicted;
+    }
+
+    /**
+     * 共享索引下为整批记录腾出空间，淘汰的文件直接删除
+     */
+    private void reserveShared(List<StoredEntry> entries) {
+        try {
+            lockShared();
+        } catch (IOException e) {
+            // 写入每个文件时仍会按需淘汰
+            e.printStackTrace();
+            return;
+        }
+        try {
+            int count = 0;
+            long size = 0;
+            for (StoredEntry entry : entries) {
+                size += entry.header.length + entry.value.length;
+                long old = shared.sizeOf(entry.key.hashCode());
+                if (old >= 0) {
+                    size -= old;
+                } else {
+                    count++;
+                }
+            }
+            int maxCount = Math.min(countLimit, shared.maxEntries());
+            while ((shared.count() + count > maxCount || shared.size() + size > sizeLimit)
+                    && evictShared()) {
+                // 继续淘汰
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    @Override
+    public void write(String key, byte[] header, byte[] value) throws IOException {
+        write(key, header, value, true);
+    }
+
+    /**
+     * 先写入临时文件再改名，崩溃时不会留下写了一半的缓存文件；改名不影响仍被 getByteBuffer
+     * 映射着的旧文件
+     */
+    private void write(String key, byte[] header, byte[] value, boolean evict)
+            throws IOException {
+        File file = newFile(key);
+        File tmp = newTempFile(file);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(header);
+            out.write(value);
+            // 数据写入磁盘后再改名，否则崩溃后可能留下改过名但内容不完整的文件
+            out.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        commit(tmp, file, evict, Header.expireTimeOf(header, header.length));
+    }
+
+    @Override
+    public long writeStream(String key, byte[] header, InputStream in) throws IOException {
+        File file = newFile(key);
+        // 不持有锁写入临时文件，写完后再替换，同一分段的其他 key 不用等待
+        File tmp = newTempFile(file);
+        long length;
+        try {
+            length = Utils.writeStream(tmp, header, in, true);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        commit(tmp, file, true, Header.expireTimeOf(header, header.length));
+        return length;
+    }
+
+    private File newTempFile(File file) throws IOException {
+        try {
+            return File.createTempFile(file.getName() + ".", TEMP_SUFFIX, tempDir);
+        } catch (IOException e) {
+            // 临时目录可能被外部删除
+            if (!tempDir.mkdirs()) {
+                throw e;
+            }
+            return File.createTempFile(file.getName() + ".", TEMP_SUFFIX, tempDir);
+        }
+    }
+
+    /**
+     * 把写好的临时文件改名为缓存文件并加入索引，改名失败时删除临时文件，已有的缓存文件不变
+     */
+    private void commit(File tmp, File file, boolean evict, long expireTime)
+            throws IOException {
+        List<CacheFile> evicted;
+        Lock lock = lockFor(file.getName()).writeLock();
+        lock.lock();
+        try {
+            if (legacyFiles) {
+                new File(cacheDir, file.getName()).delete();
+            }
+            ensureParent(file);
+            if (shared != null) {
+                commitShared(tmp, file, evict);
+                return;
+            }
+            rename(tmp, file);
+            evicted = put(file, evict, expireTime);
+        } finally {
+            lock.unlock();
+        }
+        delete(evicted);
+    }
+
+    /**
+     * 改名和更新索引都持有共享索引的锁，其他进程淘汰时不会删除刚写入的文件
+     */
+    private void commitShared(File tmp, File file, boolean evict) throws IOException {
+        lockShared();
+        try {
+            rename(tmp, file);
+            putShared(file, evict);
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    private void rename(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp);
+        }
+    }
+
+    @Override
+    public Record open(String key) throws IOException {
+        File file = get(key);
+        if (file == null) {
+            return null;
+        }
+        if (legacyFiles && !file.exists()) {
+            Lock lock = lockFor(file.getName()).writeLock();
+            lock.lock();
+            try {
+                migrate(file);
+            } finally {
+                lock.unlock();
+            }
+        }
+        Lock lock = lockFor(file.getName()).readLock();
+        lock.lock();
+        try {
+            if (!file.exists()) {
+                return null;
+            }
+            // 打开后即使文件被删除重写，读到的依然是打开时的内容
+            RandomAccessFile raFile;
+            try {
+                raFile = new RandomAccessFile(file, "r");
+            } catch (FileNotFoundException e) {
+                // 共享索引下其他进程可能刚刚淘汰了该文件
+                return null;
+            }
+            FileChannel channel = raFile.getChannel();
+            return new Record(channel, 0, raFile.length(), channel);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public File file(String key) {
+        File file = newFile(key);
+        if (legacyFiles && !file.exists()) {
+            Lock lock = lockFor(file.getName()).writeLock();
+            lock.lock();
+            try {
+                migrate(file);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return key 对应的文件；确定 key 不存在时直接返回 null，不访问磁盘
+     */
+    private File get(String key) {
+        File file = newFile(key);
+        if (shared != null) {
+            int id = key.hashCode();
+            if (!shared.contains(id)) {
+                return null;
+            }
+            shared.touch(id);
+            return file;
+        }
+        CacheFile cacheFile = index.get(file.getName());
+        if (cacheFile == null) {
+            // 索引可能不完整时由调用方按文件是否存在判断
+            return isMissDefinite() ? null : file;
+        }
+        // 访问顺序只记在内存中，攒够一批后在后台按新的顺序重写日志；
+        // 访问次数在持锁整理缓冲区时累加，读取时不再争用同一个计数器
+        if (lru.recordAccess(cacheFile) && isRecencySnapshotDue()) {
+            scheduleJournalFlush();
+        }
+        return file;
+    }
+
+    private File newFile(String key) {
+        return fileFor(key.hashCode() + "");
+    }
+
+    private ReentrantReadWriteLock lockFor(String name) {
+        int hash = name.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    @Override
+    public boolean remove(String key) {
+        File file = newFile(key);
+        Lock lock = lockFor(file.getName()).writeLock();
+        lock.lock();
+        try {
+            if (shared != null) {
+                try {
+                    return removeShared(file, false);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+            boolean deleted = deleteFile(file.getName());
+            removeFromIndex(file.getName());
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean removeExpired(String key) {
+        return removeExpired(newFile(key));
+    }
+
+    /**
+     * id 为缓存文件名
+     */
+    @Override
+    public boolean removeExpiredById(String id) {
+        return removeExpired(fileFor(id));
+    }
+
+    private boolean removeExpired(File file) {
+        Lock lock = lockFor(file.getName()).writeLock();
+        lock.lock();
+        try {
+            migrate(file);
+            if (shared != null) {
+                return removeShared(file, true);
+            }
+            if (!isExpired(file)) {
+                return false;
+            }
+            file.delete();
+            removeFromIndex(file.getName());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除文件和更新索引都持有共享索引的锁，不会删除其他进程刚写入的文件
+     *
+     * @param expiredOnly 为 true 时只删除已到期的文件
+     */
+    private boolean removeShared(File file, boolean expiredOnly) throws IOException {
+        lockShared();
+        try {
+            if (expiredOnly && !isExpired(file)) {
+                return false;
+            }
+            boolean deleted = deleteFile(file.getName());
+            shared.remove(Integer.parseInt(file.getName()));
+            return deleted;
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    /**
+     * @return 文件头中的到期时间已过；旧格式的文件返回 false，由读取时处理
+     */
+    private boolean isExpired(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raFile.getChannel();
+            Header header = Header.read(new Record(channel, 0, raFile.length(), channel));
+            return header != null && Utils.isDue(header.expireTime);
+        } finally {
+            raFile.close();
+        }
+    }
+
+    /**
+     * @return 文件头中的到期时间；读取失败或不是新格式的文件头时按永久保存处理
+     */
+    private long readExpireTime(File file) {
+        byte[] head = new byte[Header.SIZE];
+        int length = 0;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int read;
+                while (length < head.length
+                        && (read = in.read(head, length, head.length - length)) != -1) {
+                    length += read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return Header.expireTimeOf(head, length);
+    }
+
+    /**
+     * 共享索引不记录到期时间，多进程时只清理读取过的数据
+     */
+    @Override
+    public void setExpiryListener(ExpiryListener listener) {
+        if (shared != null) {
+            return;
+        }
+        expiryListener = listener;
+        if (indexLoaded) {
+            StartThread.start(this::reportExpiring);
+        }
+    }
+
+    /**
+     * 把索引中设置了到期时间的文件交给 expiryListener，索引加载完成后在后台线程调用
+     */
+    private void reportExpiring() {
+        ExpiryListener listener = expiryListener;
+        if (listener == null) {
+            return;
+        }
+        List<CacheFile> files;
+        lru.lock.lock();
+        try {
+            files = lru.snapshot();
+        } finally {
+            lru.lock.unlock();
+        }
+        for (CacheFile cacheFile : files) {
+            if (cacheFile.expireTime != Utils.NEVER_EXPIRE) {
+                listener.onIndexed(cacheFile.name, cacheFile.expireTime);
+            }
+        }
+    }
+
+    /**
+     * 调用方需持有该文件的分段锁
+     */
+    private void removeFromIndex(String name) {
+        lru.lock.lock();
+        try {
+            if (unlink(name) != null) {
+                journal(name, null);
+                redundantOpCount += 2;
+            }
+        } finally {
+            lru.lock.unlock();
+        }
+        scheduleJournalFlush();
+    }
+
+    /**
+     * 把最久未使用的文件移出索引，调用方需持有 lru.lock；文件由调用方在释放锁之后删除
+     *
+     * @return 移出的文件；索引为空时返回 null
+     */
+    private CacheFile removeNext() {
+        CacheFile eldest = lru.eldest();
+        if (eldest == null) {
+            return null;
+        }
+        Sample sample = stats.start(AppCache.Operation.EVICT);
+        unlink(eldest.name);
+        journal(eldest.name, null);
+        redundantOpCount += 2;
+        sample.outcome = AppCache.Outcome.EVICTED;
+        sample.finish();
+        return eldest;
+    }
+
+    /**
+     * 删除已移出索引的文件，删除前又被重新写入的文件保留
+     */
+    private void delete(List<CacheFile> evicted) {
+        for (CacheFile cacheFile : evicted) {
+            Lock lock = lockFor(cacheFile.name).writeLock();
+            lock.lock();
+            try {
+                if (!index.containsKey(cacheFile.name)) {
+                    deleteFile(cacheFile.name);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private long calculateSize(File file) {
+        return file.length();
+    }
+
+
+   @Override
+   public void close() {
+       if (shared != null) {
+           shared.close();
+           return;
+       }
+       journalRebuildLock.lock();
+       try {
+           boolean rebuild;
+           lru.lock.lock();
+           try {
+               // 关闭时保存最新的访问顺序，下次启动按该顺序恢复
+               lru.drainReadBuffers();
+               rebuild = flushJournal()
+                       || (journalWriter != null && lru.appliedAccesses() > 0);
+           } finally {
+               lru.lock.unlock();
+           }
+           if (rebuild) {
+               rebuildJournal();
+           }
+           lru.lock.lock();
+           try {
+               flushJournal();
+               // 日志完整时留下标记，下次启动不用扫描目录
+               boolean complete = journalWriter != null && indexLoaded && !foreignWrites
+                       && !dirLock.othersActive(true);
+               closeJournalWriter();
+               if (complete) {
+                   try {
+                       new File(cacheDir, JOURNAL_CLEAN_FILE).createNewFile();
+                   } catch (IOException e) {
+                       e.printStackTrace();
+                   }
+               }
+           } finally {
+               lru.lock.unlock();
+           }
+       } finally {
+           journalRebuildLock.unlock();
+       }
+       if (dirLock != null) {
+           dirLock.close();
+       }
+   }
+
+   @Override
+   public void clear() {
+       if (shared != null) {
+           // 持有共享索引的锁删除，其他进程不会在删除期间写入
+           try {
+               shared.lock();
+           } catch (IOException e) {
+               e.printStackTrace();
+               return;
+           }
+           try {
+               shared.reset();
+               deleteCacheFiles();
+               shared.markBuilt();
+           } finally {
+               shared.unlock();
+           }
+           return;
+       }
+       boolean rebuild;
+       lru.lock.lock();
+       try {
+           clearIndex();
+           rebuild = journalWriter != null;
+       } finally {
+           lru.lock.unlock();
+       }
+       if (rebuild) {
+           rebuildJournal();
+       }
+       deleteCacheFiles();
+   }
+
+   private void deleteCacheFiles() {
+       File[] files = cacheDir.listFiles();
+       if (files == null) {
+           return;
+       }
+       // 各个子目录并行删除，子目录本身保留
+       List<Callable<Void>> tasks = new ArrayList<>();
+       for (File f : files) {
+           String name = f.getName();
+           if (shardLevels > 0 && isShardDir(name)) {
+               tasks.add(() -> {
+                   clearShard(f, shardLevels - 1);
+                   return null;
+               });
+           } else if (!isJournalFile(name) && !name.equals(LAYOUT_FILE)
+                   && !name.equals(TEMP_DIR) && !name.equals(SHARED_INDEX_FILE)
+                   && !name.equals(DirectoryLock.LOCK_FILE)) {
+               f.delete();
+           }
+       }
+       try {
+           IoExecutor.invokeAll(tasks);
+       } catch (IOException e) {
+           e.printStackTrace();
+       }
+       if (legacyFiles) {
+           legacyFiles = false;
+           writeLayout();
+       }
+   }
+
+   private void clearShard(File dir, int depth) {
+       File[] files = dir.listFiles();
+       if (files == null) {
+           return;
+       }
+       for (File f : files) {
+           if (depth > 0 && isShardDir(f.getName())) {
+               clearShard(f, depth - 1);
+           } else if (depth == 0) {
+               f.delete();
+           }
+       }
+   }
+
+    private static class CacheFile extends AccessNode {
+        private final File file;
+        private final String name;
+        private final long size;
+        private final long expireTime;
+
+        private CacheFile(File file, long size, long expireTime) {
+            super(file.getName().hashCode());
+            this.file = file;
+            this.name = file.getName();
+            this.size = size;
+            this.expireTime = expireTime;
+        }
+    }
+}
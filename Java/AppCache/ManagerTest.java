@@ -0,0 +1,199 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysJournalInAccessOrder() throws Exception {
+        File dir = folder.getRoot();
+        Manager manager = open(dir, 3);
+        put(manager, "a", "1");
+        put(manager, "b", "2");
+        put(manager, "c", "3");
+        read(manager, "a");
+        manager.close();
+
+        assertTrue(new File(dir, "journal.clean").exists());
+        assertEquals(names("b", "c", "a"), readJournal(dir));
+
+        // 日志恢复了访问顺序，超出数量时淘汰的是 b 而不是 a
+        manager = open(dir, 3);
+        put(manager, "d", "4");
+        assertNull(manager.open("b"));
+        assertEquals("1", read(manager, "a"));
+        assertEquals("3", read(manager, "c"));
+        assertEquals("4", read(manager, "d"));
+        manager.close();
+    }
+
+    @Test
+    public void removedEntriesStayRemovedAfterReplay() throws Exception {
+        File dir = folder.getRoot();
+        Manager manager = open(dir, 10);
+        put(manager, "a", "1");
+        put(manager, "b", "2");
+        assertTrue(manager.remove("a"));
+        manager.close();
+
+        manager = open(dir, 10);
+        assertNull(manager.open("a"));
+        assertEquals("2", read(manager, "b"));
+        manager.close();
+    }
+
+    @Test
+    public void tornJournalTailIsDroppedBeforeAppending() throws Exception {
+        File dir = folder.getRoot();
+        Manager manager = open(dir, 10);
+        put(manager, "a", "1");
+        put(manager, "b", "2");
+        manager.close();
+
+        // 最后一条记录只写了一半；保留正常关闭的标记，启动时不扫描目录，只靠回放日志恢复索引
+        assertTrue(new File(dir, "journal.clean").exists());
+        FileOutputStream out = new FileOutputStream(new File(dir, "journal"), true);
+        out.write(new byte[]{1, 0, 5, 'x'});
+        out.close();
+
+        manager = open(dir, 10);
+        put(manager, "c", "3");
+        manager.close();
+
+        // 写了一半的记录已经去掉，之后追加的记录可以完整读出
+        List<String> journal = readJournal(dir);
+        assertEquals(3, journal.size());
+        assertTrue(journal.containsAll(names("a", "b", "c")));
+
+        manager = open(dir, 10);
+        assertEquals("1", read(manager, "a"));
+        assertEquals("2", read(manager, "b"));
+        assertEquals("3", read(manager, "c"));
+        manager.close();
+    }
+
+    @Test
+    public void corruptJournalFallsBackToDirectoryScan() throws Exception {
+        File dir = folder.getRoot();
+        Manager manager = open(dir, 10);
+        put(manager, "a", "1");
+        manager.close();
+
+        FileOutputStream out = new FileOutputStream(new File(dir, "journal"));
+        out.write(new byte[]{0, 0, 0, 0, 0, 0, 0, 0});
+        out.close();
+
+        manager = open(dir, 10);
+        assertEquals("1", read(manager, "a"));
+        assertFalse(new File(dir, "journal.clean").exists());
+        manager.close();
+    }
+
+    @Test
+    public void oneHitKeyDoesNotDisplaceHotKey() throws Exception {
+        File dir = folder.getRoot();
+        Manager manager = open(dir, 2, AppCache.EvictionPolicy.TINY_LFU);
+        put(manager, "hot", "1");
+        for (int i = 0; i < 3; i++) {
+            assertEquals("1", read(manager, "hot"));
+        }
+        put(manager, "warm", "2");
+
+        // 只写入一次的 key 访问频率不高于要淘汰的 hot，被拒绝的是它自己
+        put(manager, "cold", "3");
+        assertNull(manager.open("cold"));
+        assertEquals("1", read(manager, "hot"));
+        assertEquals("2", read(manager, "warm"));
+        manager.close();
+    }
+
+    private static Manager open(File dir, int countLimit) throws InterruptedException {
+        return open(dir, countLimit, AppCache.EvictionPolicy.LRU);
+    }
+
+    /**
+     * 目录中还没有日志时，等后台扫描完目录、写出第一份日志后再返回
+     */
+    private static Manager open(File dir, int countLimit, AppCache.EvictionPolicy policy)
+            throws InterruptedException {
+        File journal = new File(dir, "journal");
+        Manager manager = new Manager(dir, Long.MAX_VALUE, countLimit, new StatsRecorder(),
+                policy, 0, false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!journal.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("journal not written", journal.exists());
+        return manager;
+    }
+
+    private static void put(Manager manager, String key, String value) throws IOException {
+        byte[] data = value.getBytes("UTF-8");
+        manager.write(key, Header.encode(0, Utils.NEVER_EXPIRE, data), data);
+    }
+
+    private static String read(Manager manager, String key) throws IOException {
+        Record record = manager.open(key);
+        assertNotNull(key, record);
+        try {
+            return new String(Header.read(record).readValue(record), "UTF-8");
+        } finally {
+            record.close();
+        }
+    }
+
+    private static List<String> names(String... keys) {
+        List<String> names = new ArrayList<>();
+        for (String key : keys) {
+            names.add(String.valueOf(key.hashCode()));
+        }
+        return names;
+    }
+
+    /**
+     * @return 日志回放后留下的文件名，按日志中的顺序；日志末尾不完整时测试失败
+     */
+    private static List<String> readJournal(File dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, "journal"))));
+        try {
+            in.readInt();
+            in.readInt();
+            int op;
+            while ((op = in.read()) != -1) {
+                String name = in.readUTF();
+                names.remove(name);
+                if (op == 1) {
+                    in.readLong();
+                    in.readLong();
+                    names.add(name);
+                }
+            }
+        } catch (EOFException e) {
+            fail("journal ends with a partial record");
+        } finally {
+            in.close();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存缓存，存放最近读写过的原始数据或解码后的对象，命中时不再访问磁盘
+ * <p>
+ * 原始数据都是编码时新建的数组，不会交给调用方，只以只读的 ByteBuffer 对外提供；
+ * 解码后的对象由 {@link AppCache#getObject} 决定是否放入
+ * <p>
+ * 读取不加锁，写入和淘汰持有 lru.lock
+ */
+class MemoryCache {
+    static final int TYPE_BYTES = 0;
+    static final int TYPE_STRING = 1;
+    static final int TYPE_OBJECT = 2;
+
+    private final long sizeLimit;
+    private final int countLimit;
+    private final ConcurrentHashMap<String, MemoryEntry> entries = new ConcurrentHashMap<>();
+    private final AccessOrder<MemoryEntry> lru = new AccessOrder<>();
+    /**
+     * 由 lru.lock 保护
+     */
+    private long size;
+    private int count;
+
+    MemoryCache(long sizeLimit, int countLimit) {
+        this.sizeLimit = sizeLimit;
+        this.countLimit = countLimit;
+    }
+
+    /**
+     * @return 缓存的数据；不存在、类型不符或已到期时返回 null
+     */
+    Object get(String key, int type) {
+        MemoryEntry entry = entries.get(key);
+        if (entry == null || entry.type != type) {
+            return null;
+        }
+        if (Utils.isDue(entry.expireTime)) {
+            remove(key, entry);
+            return null;
+        }
+        lru.recordAccess(entry);
+        return entry.value;
+    }
+
+    void put(String key, int type, Object value, long expireTime) {
+        long weight = weigh(value);
+        lru.lock.lock();
+        try {
+            lru.drainReadBuffers();
+            unlink(entries.get(key));
+            if (weight > sizeLimit) {
+                return;
+            }
+            MemoryEntry eldest;
+            while ((count + 1 > countLimit || size + weight > sizeLimit)
+                    && (eldest = lru.eldest()) != null) {
+                unlink(eldest);
+            }
+            link(new MemoryEntry(key, type, value, weight, expireTime));
+        } finally {
+            lru.lock.unlock();
+        }
+    }
+
+    /**
+     * 用解码后的对象替换内存中的原始数据，原始数据已被新的写入替换时不做处理
+     */
+    void promote(String key, byte[] data, Object value) {
+        lru.lock.lock();
+        try {
+            MemoryEntry entry = entries.get(key);
+            if (entry != null && entry.value == data) {
+                unlink(entry);
+                link(new MemoryEntry(key, TYPE_OBJECT, value, entry.weight,
+                        entry.expireTime));
+            }
+        } finally {
+            lru.lock.unlock();
+        }
+    }
+
+    void removeIfDue(String key) {
+        MemoryEntry entry = entries.get(key);
+        if (entry != null && Utils.isDue(entry.expireTime)) {
+            remove(key, entry);
+        }
+    }
+
+    void remove(String key) {
+        lru.lock.lock();
+        try {
+            unlink(entries.get(key));
+        } finally {
+            lru.lock.unlock();
+        }
+    }
+
+    /**
+     * 只有 key 对应的仍然是 entry 时才移除
+     */
+    private void remove(String key, MemoryEntry entry) {
+        lru.lock.lock();
+        try {
+            if (entries.get(key) == entry) {
+                unlink(entry);
+            }
+        } finally {
+            lru.lock.unlock();
+        }
+    }
+
+    void clear() {
+        lru.lock.lock();
+        try {
+            entries.clear();
+            lru.clear();
+            size = 0;
+            count = 0;
+        } finally {
+            lru.lock.unlock();
+        }
+    }
+
+    /**
+     * 调用方需持有 lru.lock
+     */
+    private void link(MemoryEntry entry) {
+        entries.put(entry.key, entry);
+        lru.add(entry);
+        size += entry.weight;
+        count++;
+    }
+
+    /**
+     * 调用方需持有 lru.lock
+     */
+    private void unlink(MemoryEntry entry) {
+        if (entry != null && entries.remove(entry.key, entry)) {
+            lru.remove(entry);
+            size -= entry.weight;
+            count--;
+        }
+    }
+
+    private static long weigh(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        if (value instanceof String) {
+            return ((String) value).length() * 2L;
+        }
+        return 1;
+    }
+
+    private static class MemoryEntry extends AccessNode {
+        private final String key;
+        private final int type;
+        private final Object value;
+        private final long weight;
+        private final long expireTime;
+
+        private MemoryEntry(String key, int type, Object value, long weight, long expireTime) {
+            super(key.hashCode());
+            this.key = key;
+            this.type = type;
+            this.value = value;
+            this.weight = weight;
+            this.expireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外缓存，位于内存缓存和磁盘之间，数据保存在直接内存中，不占用堆内存，也不增加 GC 的停顿时间
+ * <p>
+ * 堆外内存按 1MB 的 slab 分配，slab 第一次使用时分给某个大小级别并切成该级别大小的块，每条数据占用一块，
+ * 依次存放 key 的 UTF-8 编码和数据；空闲的块通过块内开头 8 字节的地址串成链表。索引是开放寻址的 int 数组，
+ * 每条数据的属性保存在按编号访问的基本类型数组中，不为每条数据创建对象。
+ * <p>
+ * 每个大小级别各自按 LRU 淘汰；写入时数据已经写入磁盘，淘汰时直接丢弃。所有 slab 都分出去之后，
+ * 没有空间的级别可以从其他级别收回整个 slab，见 {@link Segment#reclaimableSlab}。
+ * <p>
+ * slab 按 key 的 hash 平均分给若干分段，每个分段各自加锁，不同分段的读写互不阻塞
+ */
+final class OffHeapCache {
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64;
+    /**
+     * 相邻级别的块大小之比，块内平均浪费约 10%
+     */
+    private static final double CHUNK_GROWTH = 1.25;
+    private static final int[] CHUNK_SIZES;
+    private static final int NONE = -1;
+    private static final int INITIAL_ENTRIES = 1024;
+    /**
+     * 其他级别最久未使用的数据闲置的时间超过本级别最久未使用数据的该倍数时，收回它所在的 slab
+     */
+    private static final int REASSIGN_AGE_RATIO = 2;
+    /**
+     * 每个分段至少分到的 slab 数，分段太多时每段的 slab 不够在各级别之间调配
+     */
+    private static final int MIN_SEGMENT_SLABS = 8;
+
+    static {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_CHUNK_SIZE; size < SLAB_SIZE;
+             size = ((int) (size * CHUNK_GROWTH) + 7) & ~7) {
+            sizes.add(size);
+        }
+        sizes.add(SLAB_SIZE);
+        CHUNK_SIZES = new int[sizes.size()];
+        for (int i = 0; i < CHUNK_SIZES.length; i++) {
+            CHUNK_SIZES[i] = sizes.get(i);
+        }
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    /**
+     * @param capacity 堆外内存的最大字节数，按 slab 的大小向下取整，至少一个 slab
+     */
+    OffHeapCache(long capacity) {
+        int slabCount = (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity / SLAB_SIZE));
+        int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(
+                4 * Runtime.getRuntime().availableProcessors(), slabCount / MIN_SEGMENT_SLABS)));
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(slabCount / segmentCount
+                    + (i < slabCount % segmentCount ? 1 : 0));
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    /**
+     * @return 数据的副本，从 slab 中只复制一次；不存在或已到期时返回 null
+     */
+    byte[] get(String key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key.getBytes(StandardCharsets.UTF_8), hash);
+    }
+
+    void put(String key, byte[] value, long expireTime) {
+        int hash = hash(key);
+        segmentFor(hash).put(key.getBytes(StandardCharsets.UTF_8), hash, value, expireTime);
+    }
+
+    void remove(String key) {
+        int hash = hash(key);
+        segmentFor(hash).remove(key.getBytes(StandardCharsets.UTF_8), hash);
+    }
+
+    void removeIfDue(String key) {
+        int hash = hash(key);
+        segmentFor(hash).removeIfDue(key.getBytes(StandardCharsets.UTF_8), hash);
+    }
+
+    /**
+     * 清空索引，已经申请的 slab 保留下来重新分配
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * 分段用 hash 的高位选择，分段内的索引用低位
+     */
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    /**
+     * 一个分段，有自己的 slab、索引和各级别的 LRU 链表，所有操作持有 lock
+     */
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ByteBuffer[] slabs;
+        /**
+         * 各 slab 所属的级别和其中正在使用的块数
+         */
+        private final int[] slabClasses;
+        private final int[] slabLive;
+        /**
+         * 已经分给各个级别的 slab 数，clear 之后重新分配已经申请过的 slab
+         */
+        private int usedSlabs;
+        /**
+         * 各级别正在切分的 slab 和下一块的位置
+         */
+        private final int[] carvingSlab = new int[CHUNK_SIZES.length];
+        private final int[] carvingOffset = new int[CHUNK_SIZES.length];
+        private final long[] freeChunk = new long[CHUNK_SIZES.length];
+        /**
+         * 各级别 LRU 链表的头尾，头部最久未使用
+         */
+        private final int[] eldest = new int[CHUNK_SIZES.length];
+        private final int[] youngest = new int[CHUNK_SIZES.length];
+
+        private int[] hashes = new int[INITIAL_ENTRIES];
+        private long[] addresses = new long[INITIAL_ENTRIES];
+        private int[] keyLengths = new int[INITIAL_ENTRIES];
+        private int[] valueLengths = new int[INITIAL_ENTRIES];
+        private long[] expireTimes = new long[INITIAL_ENTRIES];
+        private int[] chunkClasses = new int[INITIAL_ENTRIES];
+        /**
+         * 最后一次访问时的 clock，用来比较不同级别中数据的新旧
+         */
+        private long[] accessTicks = new long[INITIAL_ENTRIES];
+        private long clock;
+        private int[] prev = new int[INITIAL_ENTRIES];
+        /**
+         * 已删除的编号也通过 next 串成链表
+         */
+        private int[] next = new int[INITIAL_ENTRIES];
+        private int nextId;
+        private int freeId;
+        /**
+         * 开放寻址（线性探测）的索引，元素为编号加一，0 表示空位
+         */
+        private int[] table = new int[INITIAL_ENTRIES * 2];
+        private int count;
+
+        private Segment(int slabCount) {
+            slabs = new ByteBuffer[slabCount];
+            slabClasses = new int[slabs.length];
+            slabLive = new int[slabs.length];
+            reset();
+        }
+
+        private byte[] get(byte[] keyBytes, int hash) {
+            lock.lock();
+            try {
+                int slot = find(hash, keyBytes);
+                if (slot == NONE) {
+                    return null;
+                }
+                int id = table[slot] - 1;
+                if (Utils.isDue(expireTimes[id])) {
+                    removeAt(slot);
+                    return null;
+                }
+                unlinkOrder(id);
+                linkOrder(id);
+                byte[] value = new byte[valueLengths[id]];
+                ByteBuffer slab = slabs[slabOf(addresses[id])];
+                slab.position(offsetOf(addresses[id]) + keyLengths[id]);
+                slab.get(value);
+                return value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void put(byte[] keyBytes, int hash, byte[] value, long expireTime) {
+            int size = keyBytes.length + value.length;
+            lock.lock();
+            try {
+                int slot = find(hash, keyBytes);
+                if (slot != NONE) {
+                    removeAt(slot);
+                }
+                if (size > SLAB_SIZE) {
+                    return;
+                }
+                int chunkClass = chunkClassOf(size);
+                long address = allocate(chunkClass);
+                if (address == NONE) {
+                    return;
+                }
+                ByteBuffer slab = slabs[slabOf(address)];
+                slab.position(offsetOf(address));
+                slab.put(keyBytes);
+                slab.put(value);
+                int id = newId();
+                hashes[id] = hash;
+                addresses[id] = address;
+                keyLengths[id] = keyBytes.length;
+                valueLengths[id] = value.length;
+                expireTimes[id] = expireTime;
+                chunkClasses[id] = chunkClass;
+                linkOrder(id);
+                insert(id);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(byte[] keyBytes, int hash) {
+            lock.lock();
+            try {
+                int slot = find(hash, keyBytes);
+                if (slot != NONE) {
+                    removeAt(slot);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void removeIfDue(byte[] keyBytes, int hash) {
+            lock.lock();
+            try {
+                int slot = find(hash, keyBytes);
+                if (slot != NONE && Utils.isDue(expireTimes[table[slot] - 1])) {
+                    removeAt(slot);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 清空索引，已经申请的 slab 保留下来重新分配
+         */
+        private void clear() {
+            lock.lock();
+            try {
+                reset();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void reset() {
+            usedSlabs = 0;
+            Arrays.fill(slabLive, 0);
+            Arrays.fill(carvingSlab, NONE);
+            Arrays.fill(freeChunk, NONE);
+            Arrays.fill(eldest, NONE);
+            Arrays.fill(youngest, NONE);
+            Arrays.fill(table, 0);
+            nextId = 0;
+            freeId = NONE;
+            count = 0;
+        }
+
+        /**
+         * 依次使用空闲块、正在切分的 slab、新的 slab 和从其他级别收回的 slab，
+         * 都没有时淘汰同一级别中最久未使用的数据
+         *
+         * @return 块的地址；没有 slab 可以收回，该级别也没有任何数据可以淘汰时返回 NONE
+         */
+        private long allocate(int chunkClass) {
+            if (freeChunk[chunkClass] == NONE) {
+                int chunkSize = CHUNK_SIZES[chunkClass];
+                int slab = carvingSlab[chunkClass];
+                if (slab != NONE && carvingOffset[chunkClass] + chunkSize <= SLAB_SIZE) {
+                    carvingOffset[chunkClass] += chunkSize;
+                    slabLive[slab]++;
+                    return addressOf(slab, carvingOffset[chunkClass] - chunkSize);
+                }
+                if (usedSlabs < slabs.length) {
+                    slab = usedSlabs++;
+                    if (slabs[slab] == null) {
+                        slabs[slab] = ByteBuffer.allocateDirect(SLAB_SIZE);
+                    }
+                    return assign(slab, chunkClass);
+                }
+                slab = reclaimableSlab(chunkClass);
+                if (slab != NONE) {
+                    reclaim(slab);
+                    return assign(slab, chunkClass);
+                }
+                if (eldest[chunkClass] == NONE) {
+                    return NONE;
+                }
+                removeAt(slotOf(eldest[chunkClass]));
+            }
+            long address = freeChunk[chunkClass];
+            freeChunk[chunkClass] = slabs[slabOf(address)].getLong(offsetOf(address));
+            slabLive[slabOf(address)]++;
+            return address;
+        }
+
+        /**
+         * 把 slab 分给 chunkClass 切分，返回第一块
+         */
+        private long assign(int slab, int chunkClass) {
+            slabClasses[slab] = chunkClass;
+            carvingSlab[chunkClass] = slab;
+            carvingOffset[chunkClass] = CHUNK_SIZES[chunkClass];
+            slabLive[slab]++;
+            return addressOf(slab, 0);
+        }
+
+        /**
+         * 选出可以转给 chunkClass 的 slab：优先选其他级别中已经没有数据的 slab；
+         * 否则在 chunkClass 没有数据，或者其他级别中最久未使用的数据闲置得比 chunkClass 中的久得多时，
+         * 选那条数据所在的 slab。这样各级别占用的 slab 会随着数据大小的分布变化，不会一直保持最初的分配
+         *
+         * @return 没有合适的 slab 时返回 NONE
+         */
+        private int reclaimableSlab(int chunkClass) {
+            for (int slab = 0; slab < usedSlabs; slab++) {
+                if (slabLive[slab] == 0 && slabClasses[slab] != chunkClass) {
+                    return slab;
+                }
+            }
+            int victim = NONE;
+            for (int c = 0; c < CHUNK_SIZES.length; c++) {
+                if (c != chunkClass && eldest[c] != NONE
+                        && (victim == NONE || accessTicks[eldest[c]] < accessTicks[victim])) {
+                    victim = eldest[c];
+                }
+            }
+            if (victim == NONE) {
+                return NONE;
+            }
+            int own = eldest[chunkClass];
+            if (own != NONE && clock - accessTicks[victim]
+                    <= REASSIGN_AGE_RATIO * (clock - accessTicks[own])) {
+                return NONE;
+            }
+            return slabOf(addresses[victim]);
+        }
+
+        /**
+         * 丢弃 slab 中的所有数据，并把它从原来的级别中移除
+         */
+        private void reclaim(int slab) {
+            int chunkClass = slabClasses[slab];
+            for (int id = eldest[chunkClass]; id != NONE && slabLive[slab] > 0; ) {
+                // removeAt 会把 next[id] 用于已删除编号的链表
+                int following = next[id];
+                if (slabOf(addresses[id]) == slab) {
+                    removeAt(slotOf(id));
+                }
+                id = following;
+            }
+            long head = NONE;
+            long tail = NONE;
+            for (long address = freeChunk[chunkClass]; address != NONE; ) {
+                long following = slabs[slabOf(address)].getLong(offsetOf(address));
+                if (slabOf(address) != slab) {
+                    if (tail == NONE) {
+                        head = address;
+                    } else {
+                        slabs[slabOf(tail)].putLong(offsetOf(tail), address);
+                    }
+                    tail = address;
+                }
+                address = following;
+            }
+            if (tail != NONE) {
+                slabs[slabOf(tail)].putLong(offsetOf(tail), NONE);
+            }
+            freeChunk[chunkClass] = head;
+            if (carvingSlab[chunkClass] == slab) {
+                carvingSlab[chunkClass] = NONE;
+            }
+        }
+
+        private void free(int chunkClass, long address) {
+            slabs[slabOf(address)].putLong(offsetOf(address), freeChunk[chunkClass]);
+            freeChunk[chunkClass] = address;
+            slabLive[slabOf(address)]--;
+        }
+
+        /**
+         * @return key 所在的索引位置，不存在时返回 NONE
+         */
+        private int find(int hash, byte[] keyBytes) {
+            int mask = table.length - 1;
+            for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int id = table[slot] - 1;
+                if (hashes[id] == hash && keyEquals(id, keyBytes)) {
+                    return slot;
+                }
+            }
+            return NONE;
+        }
+
+        private int slotOf(int id) {
+            int mask = table.length - 1;
+            int slot = hashes[id] & mask;
+            while (table[slot] != id + 1) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private boolean keyEquals(int id, byte[] keyBytes) {
+            if (keyLengths[id] != keyBytes.length) {
+                return false;
+            }
+            ByteBuffer slab = slabs[slabOf(addresses[id])];
+            int offset = offsetOf(addresses[id]);
+            for (int i = 0; i < keyBytes.length; i++) {
+                if (slab.get(offset + i) != keyBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(int id) {
+            if ((count + 1) * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+            int mask = table.length - 1;
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+            count++;
+        }
+
+        private void rehash(int length) {
+            int[] old = table;
+            table = new int[length];
+            int mask = length - 1;
+            for (int ref : old) {
+                if (ref != 0) {
+                    int slot = hashes[ref - 1] & mask;
+                    while (table[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table[slot] = ref;
+                }
+            }
+        }
+
+        /**
+         * 移除索引位置上的数据，之后的元素向前移动填补空位，不留删除标记
+         */
+        private void removeAt(int slot) {
+            int id = table[slot] - 1;
+            int mask = table.length - 1;
+            int hole = slot;
+            table[hole] = 0;
+            for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+                int home = hashes[table[i] - 1] & mask;
+                // hole 在 home 到 i 之间时，i 上的元素可以移到 hole
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    table[hole] = table[i];
+                    table[i] = 0;
+                    hole = i;
+                }
+            }
+            count--;
+            unlinkOrder(id);
+            free(chunkClasses[id], addresses[id]);
+            next[id] = freeId;
+            freeId = id;
+        }
+
+        private int newId() {
+            if (freeId != NONE) {
+                int id = freeId;
+                freeId = next[id];
+                return id;
+            }
+            if (nextId == hashes.length) {
+                int length = hashes.length * 2;
+                hashes = Arrays.copyOf(hashes, length);
+                addresses = Arrays.copyOf(addresses, length);
+                keyLengths = Arrays.copyOf(keyLengths, length);
+                valueLengths = Arrays.copyOf(valueLengths, length);
+                expireTimes = Arrays.copyOf(expireTimes, length);
+                chunkClasses = Arrays.copyOf(chunkClasses, length);
+                accessTicks = Arrays.copyOf(accessTicks, length);
+                prev = Arrays.copyOf(prev, length);
+                next = Arrays.copyOf(next, length);
+            }
+            return nextId++;
+        }
+
+        /**
+         * 加到所在级别 LRU 链表的尾部
+         */
+        private void linkOrder(int id) {
+            int chunkClass = chunkClasses[id];
+            accessTicks[id] = ++clock;
+            prev[id] = youngest[chunkClass];
+            next[id] = NONE;
+            if (youngest[chunkClass] != NONE) {
+                next[youngest[chunkClass]] = id;
+            } else {
+                eldest[chunkClass] = id;
+            }
+            youngest[chunkClass] = id;
+        }
+
+        private void unlinkOrder(int id) {
+            int chunkClass = chunkClasses[id];
+            if (prev[id] != NONE) {
+                next[prev[id]] = next[id];
+            } else {
+                eldest[chunkClass] = next[id];
+            }
+            if (next[id] != NONE) {
+                prev[next[id]] = prev[id];
+            } else {
+                youngest[chunkClass] = prev[id];
+            }
+        }
+    }
+
+    private static int chunkClassOf(int size) {
+        int index = Arrays.binarySearch(CHUNK_SIZES, size);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long addressOf(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+}
@@ -0,0 +1,89 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapCacheTest {
+    /**
+     * 两个 slab 只分成一个分段
+     */
+    private static final long CAPACITY = 2 * 1024 * 1024;
+    private static final int SMALL_COUNT = 40000;
+
+    @Test
+    public void fullClassReclaimsSlabFromAnotherClass() {
+        OffHeapCache cache = new OffHeapCache(CAPACITY);
+        // 小数据写满两个 slab，之后的写入只能在同一级别中淘汰
+        for (int i = 0; i < SMALL_COUNT; i++) {
+            cache.put("s" + i, small(i), Utils.NEVER_EXPIRE);
+        }
+        int before = countSmall(cache);
+        assertTrue(before < SMALL_COUNT);
+
+        // 大数据的级别没有 slab，收回小数据的一个 slab 后才能写入
+        byte[] big = new byte[100000];
+        Arrays.fill(big, (byte) 7);
+        cache.put("big", big, Utils.NEVER_EXPIRE);
+        assertArrayEquals(big, cache.get("big"));
+
+        // 两个 slab 各存了一半小数据，被收回的 slab 中的数据全部移除，另一半完好
+        assertEquals(before / 2, countSmall(cache));
+
+        // 两个级别之后都可以继续写入
+        cache.put("s-new", small(-1), Utils.NEVER_EXPIRE);
+        assertArrayEquals(small(-1), cache.get("s-new"));
+        assertNotNull(cache.get("big"));
+    }
+
+    @Test
+    public void entriesInAllSegmentsAreReadable() {
+        // slab 在第一次使用时才申请，容量大时分成多个分段
+        OffHeapCache cache = new OffHeapCache(64L * 1024 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            cache.put("s" + i, small(i), Utils.NEVER_EXPIRE);
+        }
+        assertEquals(10000, countSmall(cache));
+    }
+
+    @Test
+    public void removedAndExpiredEntriesAreGone() {
+        OffHeapCache cache = new OffHeapCache(CAPACITY);
+        cache.put("a", small(1), Utils.NEVER_EXPIRE);
+        cache.put("b", small(2), System.currentTimeMillis() - 1);
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+
+        cache.put("c", small(3), Utils.NEVER_EXPIRE);
+        cache.clear();
+        assertNull(cache.get("c"));
+    }
+
+    /**
+     * @return 读到的小数据条数，读到的数据都必须和写入的一致
+     */
+    private static int countSmall(OffHeapCache cache) {
+        int found = 0;
+        for (int i = 0; i < SMALL_COUNT; i++) {
+            byte[] value = cache.get("s" + i);
+            if (value != null) {
+                assertArrayEquals(small(i), value);
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static byte[] small(int i) {
+        byte[] value = new byte[40];
+        Arrays.fill(value, (byte) i);
+        value[0] = (byte) (i >>> 8);
+        value[1] = (byte) (i >>> 16);
+        return value;
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 多个线程写入、持有 AccessOrder.lock 的线程读取的有界环形缓冲区
+ */
+final class ReadBuffer {
+    static final int SIZE = 64;
+    private static final int MASK = SIZE - 1;
+
+    private final AtomicReferenceArray<AccessNode> slots = new AtomicReferenceArray<>(SIZE);
+    private final AtomicLong writeCounter = new AtomicLong();
+    private volatile long readCounter;
+
+    /**
+     * @return 放入后缓冲区中的节点数；缓冲区已满或有其他线程同时写入时放弃并返回 -1
+     */
+    int offer(AccessNode node) {
+        long head = readCounter;
+        long tail = writeCounter.get();
+        long size = tail - head;
+        if (size >= SIZE || !writeCounter.compareAndSet(tail, tail + 1)) {
+            return -1;
+        }
+        slots.lazySet((int) (tail & MASK), node);
+        return (int) size + 1;
+    }
+
+    /**
+     * @return 移到队尾的节点数
+     */
+    int drainTo(AccessOrder<?> order) {
+        long start = readCounter;
+        long head = start;
+        long tail = writeCounter.get();
+        for (; head < tail; head++) {
+            int index = (int) (head & MASK);
+            AccessNode node = slots.get(index);
+            if (node == null) {
+                // 写入线程已经占了位置但还没有放进去，下次再处理
+                break;
+            }
+            slots.lazySet(index, null);
+            order.moveToTail(node);
+        }
+        readCounter = head;
+        return (int) (head - start);
+    }
+}
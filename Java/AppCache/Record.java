@@ -0,0 +1,85 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 存储引擎中的一条记录，位于 channel 的 [offset, offset + length) 区间
+ */
+class Record implements Closeable {
+    final FileChannel channel;
+    final long offset;
+    final long length;
+    private final Closeable resource;
+    private boolean closed;
+
+    Record(FileChannel channel, long offset, long length, Closeable resource) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.resource = resource;
+    }
+
+    /**
+     * 从记录内的 position 处读满 dst，不改变 channel 的位置
+     */
+    void readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, offset + position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * @return 从记录内 start 处开始读取的 channel，关闭时同时关闭记录
+     */
+    ReadableByteChannel newChannel(final long start) {
+        return new ReadableByteChannel() {
+            private long position = start;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                long remaining = length - position;
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int limit = dst.limit();
+                if (dst.remaining() > remaining) {
+                    dst.limit(dst.position() + (int) remaining);
+                }
+                try {
+                    int read = channel.read(dst, offset + position);
+                    if (read > 0) {
+                        position += read;
+                    }
+                    return read;
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return !closed;
+            }
+
+            @Override
+            public void close() throws IOException {
+                Record.this.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            resource.close();
+        }
+    }
+}
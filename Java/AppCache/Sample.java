@@ -0,0 +1,45 @@
+/**
+ * 一次操作的计时和结果，默认结果为 {@link AppCache.Outcome#ABSENT}
+ */
+final class Sample {
+    private final StatsRecorder recorder;
+    private final AppCache.Operation operation;
+    private final long start = System.nanoTime();
+    AppCache.Outcome outcome = AppCache.Outcome.ABSENT;
+    private Exception error;
+
+    Sample(StatsRecorder recorder, AppCache.Operation operation) {
+        this.recorder = recorder;
+        this.operation = operation;
+    }
+
+    void hit() {
+        outcome = AppCache.Outcome.HIT;
+    }
+
+    void expired() {
+        outcome = AppCache.Outcome.EXPIRED;
+    }
+
+    void fail(Exception e) {
+        outcome = AppCache.Outcome.ERROR;
+        error = e;
+    }
+
+    void decodeFailed(Exception e) {
+        outcome = AppCache.Outcome.DECODE_FAILURE;
+        error = e;
+    }
+
+    /**
+     * 旧格式的文件到期时返回 null
+     */
+    byte[] legacy(byte[] value) {
+        outcome = value != null ? AppCache.Outcome.HIT : AppCache.Outcome.EXPIRED;
+        return value;
+    }
+
+    void finish() {
+        recorder.record(operation, outcome, System.nanoTime() - start, error);
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 多个进程共享的缓存文件索引，保存在缓存目录下的文件中，各进程通过内存映射读写同一份数据
+ * <p>
+ * 修改前持有进程内的 lock 和文件锁，修改期间头部的序号为奇数；读取不加锁，前后序号不一致时重试。
+ * 序号和槽位的读写之间有内存屏障，读到修改过一半的槽位时一定能读到变化后的序号。
+ * 读取的结果只用来判断是否需要打开文件，偶尔不准确只会多一次未命中或多打开一次文件。
+ * 访问时间直接写入映射的内存，不加锁，由系统在后台写回；淘汰时随机取样，移除其中最久未访问的文件
+ * <p>
+ * 格式：头部 {@link #HEADER_SIZE} 字节，之后是开放寻址（线性探测）的槽位，
+ * 每个槽位为 id(4) used(4) size(8) accessTime(8)，id 即缓存文件名
+ */
+final class SharedIndex {
+    private static final int MAGIC = 0x41435349;
+    private static final int VERSION = 1;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int STATE_OFFSET = 12;
+    private static final int SEQ_OFFSET = 16;
+    private static final int SIZE_OFFSET = 24;
+    private static final int COUNT_OFFSET = 32;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 24;
+    private static final int STATE_BUILT = 1;
+    /**
+     * 槽位数固定，条数最多为槽位数的 3/4
+     */
+    private static final int MAX_ENTRIES = 1 << 18;
+    private static final int SAMPLE_SIZE = 8;
+    private static final int READ_RETRIES = 8;
+    /**
+     * 访问时间的精度，间隔更短的访问不再写入，减少写回的脏页
+     */
+    private static final long TOUCH_GRANULARITY_MILLIS = 1000;
+    static final int NONE = -1;
+
+    final ReentrantLock lock = new ReentrantLock();
+    private final RandomAccessFile raFile;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final Random random = new Random();
+    private FileLock fileLock;
+
+    /**
+     * @param maxEntries 期望的最大条数，文件已经存在时使用文件中的容量
+     */
+    SharedIndex(File file, int maxEntries) throws IOException {
+        raFile = new RandomAccessFile(file, "rw");
+        channel = raFile.getChannel();
+        FileLock creating = channel.lock();
+        try {
+            int existing = NONE;
+            if (raFile.length() >= HEADER_SIZE) {
+                raFile.seek(MAGIC_OFFSET);
+                if (raFile.readInt() == MAGIC && raFile.readInt() == VERSION) {
+                    existing = raFile.readInt();
+                }
+            }
+            // 其他进程可能已经映射了这个文件，只在原处写文件头、必要时加长，不截短文件
+            if (existing >= 64 && existing <= MAX_ENTRIES * 2 && Integer.bitCount(existing) == 1) {
+                capacity = existing;
+            } else {
+                capacity = AccessOrder.ceilingPowerOfTwo(
+                        Math.max(64, Math.min(maxEntries, MAX_ENTRIES) / 3 * 4 + 1));
+                // 状态不是 STATE_BUILT，第一个持有锁的进程会清空槽位并扫描目录
+                raFile.seek(MAGIC_OFFSET);
+                raFile.writeInt(MAGIC);
+                raFile.writeInt(VERSION);
+                raFile.writeInt(capacity);
+                raFile.writeInt(0);
+            }
+            long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+            if (raFile.length() < length) {
+                raFile.setLength(length);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            creating.release();
+        }
+    }
+
+    void lock() throws IOException {
+        lock.lock();
+        try {
+            fileLock = channel.lock();
+        } catch (IOException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    void unlock() {
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            fileLock = null;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 调用方需持有锁
+     *
+     * @return 索引已经建立，并且没有进程在修改期间退出
+     */
+    boolean isValid() {
+        return buffer.getInt(STATE_OFFSET) == STATE_BUILT
+                && (buffer.getLong(SEQ_OFFSET) & 1) == 0;
+    }
+
+    /**
+     * 清空索引并标记为正在建立，建立完成后调用 {@link #markBuilt}，调用方需持有锁
+     */
+    void reset() {
+        buffer.putInt(STATE_OFFSET, 0);
+        // 之前的修改可能没有完成，序号已经是奇数
+        buffer.putLong(SEQ_OFFSET, (buffer.getLong(SEQ_OFFSET) + 2) | 1);
+        VarHandle.releaseFence();
+        for (int slot = 0; slot < capacity; slot++) {
+            buffer.putInt(slotOffset(slot) + 4, 0);
+        }
+        buffer.putLong(SIZE_OFFSET, 0);
+        buffer.putInt(COUNT_OFFSET, 0);
+    }
+
+    void markBuilt() {
+        buffer.putInt(STATE_OFFSET, STATE_BUILT);
+        endWrite();
+    }
+
+    long size() {
+        return buffer.getLong(SIZE_OFFSET);
+    }
+
+    int count() {
+        return buffer.getInt(COUNT_OFFSET);
+    }
+
+    int maxEntries() {
+        return Math.min(capacity / 4 * 3, MAX_ENTRIES);
+    }
+
+    /**
+     * 不加锁读取，一直有其他进程在修改时按存在处理
+     */
+    boolean contains(int id) {
+        for (int i = 0; i < READ_RETRIES; i++) {
+            long seq = buffer.getLong(SEQ_OFFSET);
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            // 槽位的读取不能提前到读序号之前，也不能推迟到再次读序号之后
+            VarHandle.acquireFence();
+            boolean found = find(id) != NONE;
+            VarHandle.acquireFence();
+            if (buffer.getLong(SEQ_OFFSET) == seq) {
+                return found;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 不加锁更新访问时间，槽位同时被移动时只会让淘汰顺序略有偏差
+     */
+    void touch(int id) {
+        int slot = find(id);
+        if (slot != NONE) {
+            int offset = slotOffset(slot) + 16;
+            long now = System.currentTimeMillis();
+            if (now - buffer.getLong(offset) >= TOUCH_GRANULARITY_MILLIS) {
+                buffer.putLong(offset, now);
+            }
+        }
+    }
+
+    /**
+     * 调用方需持有锁
+     *
+     * @return 文件大小；不在索引中时返回 -1
+     */
+    long sizeOf(int id) {
+        int slot = find(id);
+        return slot != NONE ? buffer.getLong(slotOffset(slot) + 8) : -1;
+    }
+
+    /**
+     * 加入或替换一个文件，调用方需持有锁并保证还有空位
+     */
+    void put(int id, long size, long accessTime) {
+        beginWrite();
+        removeSlot(find(id));
+        int mask = capacity - 1;
+        int slot = hash(id) & mask;
+        while (buffer.getInt(slotOffset(slot) + 4) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        int offset = slotOffset(slot);
+        buffer.putInt(offset, id);
+        buffer.putLong(offset + 8, size);
+        buffer.putLong(offset + 16, accessTime);
+        buffer.putInt(offset + 4, 1);
+        buffer.putLong(SIZE_OFFSET, size() + size);
+        buffer.putInt(COUNT_OFFSET, count() + 1);
+        endWrite();
+    }
+
+    /**
+     * 调用方需持有锁
+     *
+     * @return 是否在索引中
+     */
+    boolean remove(int id) {
+        int slot = find(id);
+        if (slot == NONE) {
+            return false;
+        }
+        beginWrite();
+        removeSlot(slot);
+        endWrite();
+        return true;
+    }
+
+    /**
+     * 从随机位置开始取样，调用方需持有锁
+     *
+     * @return 样本中最久未访问的文件所在的槽位；索引为空时返回 NONE
+     */
+    int sampleEldest() {
+        if (count() == 0) {
+            return NONE;
+        }
+        int mask = capacity - 1;
+        int slot = random.nextInt(capacity);
+        int eldest = NONE;
+        long eldestAccess = Long.MAX_VALUE;
+        for (int seen = 0, i = 0; seen < SAMPLE_SIZE && i < capacity;
+             i++, slot = (slot + 1) & mask) {
+            int offset = slotOffset(slot);
+            if (buffer.getInt(offset + 4) == 0) {
+                continue;
+            }
+            seen++;
+            long access = buffer.getLong(offset + 16);
+            if (access < eldestAccess) {
+                eldestAccess = access;
+                eldest = slot;
+            }
+        }
+        return eldest;
+    }
+
+    int idAt(int slot) {
+        return buffer.getInt(slotOffset(slot));
+    }
+
+    void close() {
+        try {
+            raFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 序号变为奇数之后才能写槽位
+     */
+    private void beginWrite() {
+        buffer.putLong(SEQ_OFFSET, buffer.getLong(SEQ_OFFSET) + 1);
+        VarHandle.releaseFence();
+    }
+
+    /**
+     * 槽位全部写完之后序号才变回偶数
+     */
+    private void endWrite() {
+        VarHandle.releaseFence();
+        buffer.putLong(SEQ_OFFSET, buffer.getLong(SEQ_OFFSET) + 1);
+    }
+
+    private int find(int id) {
+        int mask = capacity - 1;
+        int slot = hash(id) & mask;
+        for (int i = 0; i < capacity; i++, slot = (slot + 1) & mask) {
+            int offset = slotOffset(slot);
+            if (buffer.getInt(offset + 4) == 0) {
+                return NONE;
+            }
+            if (buffer.getInt(offset) == id) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * 清空槽位，之后的槽位向前移动填补空位，调用方需在 beginWrite 之后调用
+     */
+    private void removeSlot(int slot) {
+        if (slot == NONE) {
+            return;
+        }
+        int offset = slotOffset(slot);
+        buffer.putLong(SIZE_OFFSET, size() - buffer.getLong(offset + 8));
+        buffer.putInt(COUNT_OFFSET, count() - 1);
+        int mask = capacity - 1;
+        int hole = slot;
+        buffer.putInt(offset + 4, 0);
+        for (int i = (hole + 1) & mask; buffer.getInt(slotOffset(i) + 4) != 0;
+             i = (i + 1) & mask) {
+            int home = hash(buffer.getInt(slotOffset(i))) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                copySlot(i, hole);
+                buffer.putInt(slotOffset(i) + 4, 0);
+                hole = i;
+            }
+        }
+    }
+
+    private void copySlot(int from, int to) {
+        int src = slotOffset(from);
+        int dst = slotOffset(to);
+        buffer.putInt(dst, buffer.getInt(src));
+        buffer.putLong(dst + 8, buffer.getLong(src + 8));
+        buffer.putLong(dst + 16, buffer.getLong(src + 16));
+        buffer.putInt(dst + 4, 1);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
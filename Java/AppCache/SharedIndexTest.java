@@ -0,0 +1,146 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 同一个文件的两个 SharedIndex 各自映射文件，和两个进程共用索引时一样
+ */
+public class SharedIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void changesAreVisibleToOtherInstance() throws IOException {
+        File file = new File(folder.getRoot(), "index");
+        SharedIndex first = build(file);
+        SharedIndex second = new SharedIndex(file, 1000);
+        try {
+            second.lock();
+            try {
+                assertTrue(second.isValid());
+                second.put(1, 10, 1000);
+                second.put(2, 20, 2000);
+            } finally {
+                second.unlock();
+            }
+            assertTrue(first.contains(1));
+            assertTrue(first.contains(2));
+            assertFalse(first.contains(3));
+
+            first.lock();
+            try {
+                assertEquals(2, first.count());
+                assertEquals(30, first.size());
+                assertTrue(first.remove(1));
+            } finally {
+                first.unlock();
+            }
+            assertFalse(second.contains(1));
+            assertTrue(second.contains(2));
+            second.lock();
+            try {
+                assertEquals(1, second.count());
+                assertEquals(20, second.sizeOf(2));
+            } finally {
+                second.unlock();
+            }
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void evictionSeesAccessFromOtherInstance() throws IOException {
+        File file = new File(folder.getRoot(), "index");
+        SharedIndex first = build(file);
+        SharedIndex second = new SharedIndex(file, 100);
+        try {
+            first.lock();
+            try {
+                for (int id = 1; id <= 5; id++) {
+                    first.put(id, 1, id * 1000L);
+                }
+            } finally {
+                first.unlock();
+            }
+            // 另一个实例访问过的 1 不再是最久未访问的
+            second.touch(1);
+
+            second.lock();
+            try {
+                int slot = second.sampleEldest();
+                assertEquals(2, second.idAt(slot));
+                assertTrue(second.remove(2));
+            } finally {
+                second.unlock();
+            }
+            assertFalse(first.contains(2));
+            first.lock();
+            try {
+                assertEquals(4, first.count());
+                assertEquals(3, first.idAt(first.sampleEldest()));
+            } finally {
+                first.unlock();
+            }
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void unknownHeaderIsRewrittenWithoutTruncating() throws IOException {
+        File file = new File(folder.getRoot(), "index");
+        SharedIndex first = build(file);
+        long length = file.length();
+        first.lock();
+        try {
+            first.put(7, 70, 1000);
+        } finally {
+            first.unlock();
+        }
+        // 模拟其他版本写入的文件头；另一个实例仍映射着文件，不能截短
+        RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+        raFile.seek(4);
+        raFile.writeInt(99);
+        raFile.close();
+
+        SharedIndex second = new SharedIndex(file, 100);
+        try {
+            assertEquals(length, file.length());
+            assertTrue(first.contains(7));
+            // 新的文件头需要重新建立索引
+            first.lock();
+            try {
+                assertFalse(first.isValid());
+            } finally {
+                first.unlock();
+            }
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    private static SharedIndex build(File file) throws IOException {
+        SharedIndex index = new SharedIndex(file, 100);
+        index.lock();
+        try {
+            assertFalse(index.isValid());
+            index.reset();
+            index.markBuilt();
+        } finally {
+            index.unlock();
+        }
+        return index;
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 累计统计数据，计数使用 LongAdder，多个线程同时更新时不会互相竞争
+ */
+final class StatsRecorder {
+    private static final int LATENCY_BUCKETS = 40;
+
+    private final LongAdder[][] counts =
+            new LongAdder[AppCache.Operation.values().length][AppCache.Outcome.values().length];
+    private final LongAdder[][] latencies =
+            new LongAdder[AppCache.Operation.values().length][LATENCY_BUCKETS];
+    private final LongAdder[] totalNanos = new LongAdder[AppCache.Operation.values().length];
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    volatile AppCache.StatsListener listener;
+
+    StatsRecorder() {
+        for (int i = 0; i < counts.length; i++) {
+            for (int j = 0; j < counts[i].length; j++) {
+                counts[i][j] = new LongAdder();
+            }
+            for (int j = 0; j < latencies[i].length; j++) {
+                latencies[i][j] = new LongAdder();
+            }
+            totalNanos[i] = new LongAdder();
+        }
+    }
+
+    Sample start(AppCache.Operation operation) {
+        return new Sample(this, operation);
+    }
+
+    void record(AppCache.Operation operation, AppCache.Outcome outcome, long nanos, Exception error) {
+        int index = operation.ordinal();
+        counts[index][outcome.ordinal()].increment();
+        int bucket = Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        latencies[index][Math.max(bucket, 0)].increment();
+        totalNanos[index].add(nanos);
+        AppCache.StatsListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onEvent(operation, outcome, nanos, error);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    AppCache.Stats snapshot() {
+        long[][] countSnapshot = new long[counts.length][];
+        AppCache.Latency[] latencySnapshot = new AppCache.Latency[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            countSnapshot[i] = new long[counts[i].length];
+            for (int j = 0; j < counts[i].length; j++) {
+                countSnapshot[i][j] = counts[i][j].sum();
+            }
+            long[] buckets = new long[LATENCY_BUCKETS];
+            for (int j = 0; j < buckets.length; j++) {
+                buckets[j] = latencies[i][j].sum();
+            }
+            latencySnapshot[i] = new AppCache.Latency(buckets, totalNanos[i].sum());
+        }
+        return new AppCache.Stats(countSnapshot, latencySnapshot, bytesRead.sum(),
+                bytesWritten.sum());
+    }
+}
@@ -0,0 +1,76 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StatsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void countsHitsMissesAndWrites() throws Exception {
+        AppCache cache = new AppCache.Builder(folder.getRoot()).build();
+        cache.putString("str", "value");
+        cache.putSerializable("obj", 42);
+        cache.putObject("short", "gone soon", 1, AppCache.BINARY_CODEC);
+
+        assertEquals("value", cache.getString("str"));
+        assertEquals("value", cache.getString("str"));
+        assertNull(cache.getString("missing"));
+        assertEquals(42, (long) (Integer) cache.getSerializable("obj"));
+        Thread.sleep(1200);
+        assertNull(cache.getSerializable("short"));
+
+        AppCache.Stats stats = cache.stats();
+        assertEquals(3, stats.count(AppCache.Operation.PUT, AppCache.Outcome.WRITTEN));
+        assertEquals(2, stats.count(AppCache.Operation.GET_STRING, AppCache.Outcome.HIT));
+        assertEquals(1, stats.count(AppCache.Operation.GET_STRING, AppCache.Outcome.ABSENT));
+        assertEquals(1, stats.count(AppCache.Operation.GET_SERIALIZABLE, AppCache.Outcome.HIT));
+        assertEquals(1,
+                stats.count(AppCache.Operation.GET_SERIALIZABLE, AppCache.Outcome.EXPIRED));
+        assertEquals(3, stats.hitCount());
+        assertEquals(2, stats.missCount());
+        assertEquals(0.6, stats.hitRate(), 1e-9);
+        assertEquals(0, stats.evictionCount());
+        assertEquals(3, stats.latency(AppCache.Operation.PUT).count());
+        assertTrue(stats.bytesWritten() >= 3 * Header.SIZE);
+        assertTrue(stats.bytesRead() > 0);
+        cache.close();
+    }
+
+    @Test
+    public void listenerReceivesEvictions() throws Exception {
+        AppCache cache = new AppCache.Builder(folder.getRoot()).maxCount(2).build();
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        cache.setStatsListener((operation, outcome, nanos, error) -> {
+            assertTrue(nanos >= 0);
+            events.add(operation + "/" + outcome);
+        });
+        cache.putString("a", "1");
+        cache.putString("b", "2");
+        cache.putString("c", "3");
+
+        // 超出数量时淘汰最久未访问的 a
+        assertEquals(1, Collections.frequency(events, "EVICT/EVICTED"));
+        assertEquals(3, Collections.frequency(events, "PUT/WRITTEN"));
+        assertEquals(1, cache.stats().evictionCount());
+        assertNull(cache.file("a"));
+        assertNotNull(cache.file("b"));
+        assertNotNull(cache.file("c"));
+
+        // 取消回调后不再收到事件，计数照常累计
+        cache.setStatsListener(null);
+        cache.putString("d", "4");
+        assertEquals(1, Collections.frequency(events, "EVICT/EVICTED"));
+        assertEquals(2, cache.stats().evictionCount());
+        cache.close();
+    }
+}
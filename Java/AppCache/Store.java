@@ -0,0 +1,73 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * 磁盘存储引擎，每条记录由文件头和数据组成
+ */
+interface Store {
+    /**
+     * 写入 key 对应的记录，覆盖已有的记录
+     */
+    void write(String key, byte[] header, byte[] value) throws IOException;
+
+    /**
+     * 把 in 中的数据写入 key 对应的记录，写完后再替换已有的记录
+     *
+     * @param header 长度字段还没有填写的文件头
+     * @return 写入的数据长度，不包括文件头
+     */
+    long writeStream(String key, byte[] header, InputStream in) throws IOException;
+
+    /**
+     * 写入一批记录，整批只做一次淘汰
+     */
+    void writeAll(List<StoredEntry> entries) throws IOException;
+
+    /**
+     * 打开 key 对应的记录，使用完后需要关闭；返回时不持有锁，可以在其他线程关闭
+     *
+     * @return 记录；不存在时返回 null
+     */
+    Record open(String key) throws IOException;
+
+    /**
+     * @return key 对应的缓存文件；记录不是单独存放在文件中时返回 null
+     */
+    File file(String key);
+
+    boolean remove(String key);
+
+    /**
+     * 记录的文件头显示已经到期时删除，与同一个 key 的写入互斥，不会删除期间新写入的数据
+     *
+     * @return 是否删除
+     */
+    boolean removeExpired(String key);
+
+    /**
+     * 索引加载完成、与磁盘核对之后，在后台线程中对索引中每条设置了到期时间的记录调用一次 listener，
+     * 启动后还没被读到的数据也能按时清理；设置时索引已经加载完成的立即开始
+     */
+    void setExpiryListener(ExpiryListener listener);
+
+    /**
+     * 按 {@link ExpiryListener} 给出的 id 删除记录，规则同 {@link #removeExpired}
+     */
+    boolean removeExpiredById(String id);
+
+    void clear();
+
+    /**
+     * 释放打开的文件，关闭后不能再读写
+     */
+    void close();
+
+    interface ExpiryListener {
+        /**
+         * @param id 记录在存储引擎中的标识，不一定是 key
+         */
+        void onIndexed(String id, long expireTime);
+    }
+}
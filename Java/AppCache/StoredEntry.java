@@ -0,0 +1,14 @@
+/**
+ * 待写入磁盘的一条记录
+ */
+class StoredEntry {
+    final String key;
+    final byte[] header;
+    final byte[] value;
+
+    StoredEntry(String key, byte[] header, byte[] value) {
+        this.key = key;
+        this.header = header;
+        this.value = value;
+    }
+}
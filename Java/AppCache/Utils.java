@@ -0,0 +1,256 @@
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 时间头、压缩、图片转换等工具方法
+ */
+class Utils {
+    private static final int STR_LEN = 2;
+    private static final String STR_START_WITH = "0";
+    private static final int THOUSAND = 1000;
+    static final long NEVER_EXPIRE = Long.MAX_VALUE;
+    private static final long STALE_TEMP_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * 判断缓存数据是否到期
+     * @return true：到期了 false：还没有到期
+     */
+    static boolean isDue(long expireTime) {
+        return System.currentTimeMillis() > expireTime;
+    }
+
+    /**
+     * 获取旧版本 ASCII 时间头中的到期时间，仅用于读取旧格式的缓存文件
+     *
+     * @return 到期时间，单位：毫秒；没有保存时间信息时返回 {@link #NEVER_EXPIRE}
+     */
+    static long getExpireTime(byte[] data) {
+        String[] str = getDateInfoFromDate(data);
+        if (str != null && str.length == STR_LEN) {
+            String saveTimeStr = str[0];
+            while (saveTimeStr.startsWith(STR_START_WITH)) {
+                saveTimeStr = saveTimeStr
+                        .substring(1, saveTimeStr.length());
+            }
+            long saveTime = Long.valueOf(saveTimeStr);
+            long deleteAfter = Long.valueOf(str[1]);
+            return saveTime + deleteAfter * THOUSAND;
+        }
+        return NEVER_EXPIRE;
+    }
+
+    static long newExpireTime(int second) {
+        return System.currentTimeMillis() + second * (long) THOUSAND;
+    }
+
+    /**
+     * 把文件头和 in 中的数据写入 file，写完后把数据长度和校验和填入文件头
+     *
+     * @param sync 返回前把数据写入磁盘，之后要改名替换缓存文件时使用
+     * @return 数据长度，不包括文件头
+     */
+    static long writeStream(File file, byte[] header, InputStream in, boolean sync)
+            throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            Checksum checksum = Header.newChecksum();
+            header[5] |= Header.checksumFlag(checksum);
+            out.setLength(0);
+            out.write(header);
+            byte[] buffer = new byte[64 * 1024];
+            long length = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                checksum.update(buffer, 0, read);
+                length += read;
+            }
+            out.seek(Header.LENGTH_OFFSET);
+            out.writeLong(length);
+            out.writeInt((int) checksum.getValue());
+            if (sync) {
+                out.getFD().sync();
+            }
+            return length;
+        } finally {
+            out.close();
+        }
+    }
+
+    static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * 删除崩溃时留下的临时文件；其他进程可能正在写入，只删除一段时间内没有修改过的
+     */
+    static void deleteStaleTempFiles(File dir, FilenameFilter filter) {
+        File[] files = dir.listFiles(filter);
+        if (files == null) {
+            return;
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < staleBefore) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 压缩后的格式：原始长度(4) + deflate 数据
+     */
+    static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            out.write(data.length >>> 24);
+            out.write(data.length >>> 16);
+            out.write(data.length >>> 8);
+            out.write(data.length);
+            byte[] buffer = new byte[8 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] decompress(byte[] data) throws IOException {
+        int length = ByteBuffer.wrap(data).getInt();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 4, data.length - 4);
+            byte[] value = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int inflated = inflater.inflate(value, offset, length - offset);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException("truncated compressed data");
+                }
+                offset += inflated;
+            }
+            return value;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static byte[] clearDateInfo(byte[] data) {
+        if (hasDateInfo(data)) {
+            return copyOfRange(data, indexOf(data, M_SEPARATOR) + 1,
+                    data.length);
+        }
+        return data;
+    }
+
+    private static boolean hasDateInfo(byte[] data) {
+        return data != null && data.length > 15 && data[13] == '-'
+                && indexOf(data, M_SEPARATOR) > 14;
+    }
+
+    private static String[] getDateInfoFromDate(byte[] data) {
+        if (hasDateInfo(data)) {
+            String saveDate = new String(copyOfRange(data, 0, 13));
+            String deleteAfter = new String(copyOfRange(data, 14,
+                    indexOf(data, M_SEPARATOR)));
+            return new String[]{saveDate, deleteAfter};
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] data, char c) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] copyOfRange(byte[] original, int from, int to) {
+        int newLength = to - from;
+        if (newLength < 0) {
+            throw new IllegalArgumentException(from + " > " + to);
+        }
+        byte[] copy = new byte[newLength];
+        System.arraycopy(original, from, copy, 0,
+                Math.min(original.length - from, newLength));
+        return copy;
+    }
+
+    private static final char M_SEPARATOR = ' ';
+
+    static byte[] bitmap2Bytes(Bitmap bm) {
+        if (bm == null) {
+            return null;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
+        return baos.toByteArray();
+    }
+
+   static Bitmap bytes2Bitmap(byte[] b) {
+       if (b.length == 0) {
+           return null;
+       }
+       return BitmapFactory.decodeByteArray(b, 0, b.length);
+   }
+
+   static Bitmap drawable2Bitmap(Drawable drawable) {
+       if (drawable == null) {
+           return null;
+       }
+       //取 drawable 的长宽
+       int w = drawable.getIntrinsicWidth();
+       int h = drawable.getIntrinsicHeight();
+       //取 drawable 的颜色格式
+       Bitmap.Config config = drawable.getOpacity() != PixelFormat.OPAQUE ? Bitmap.Config.ARGB_8888
+               : Bitmap.Config.RGB_565;
+       //建立对应 bitmap
+       Bitmap bitmap = Bitmap.createBitmap(w, h, config);
+       //建立对应 bitmap 的画布
+       Canvas canvas = new Canvas(bitmap);
+       drawable.setBounds(0, 0, w, h);
+       //把 drawable 内容画到画布中
+       drawable.draw(canvas);
+       return bitmap;
+   }
+
+   static Drawable bitmap2Drawable(Bitmap bm) {
+       if (bm == null) {
+           return null;
+       }
+       return new BitmapDrawable(Resources.getSystem(), bm);
+   }
+}
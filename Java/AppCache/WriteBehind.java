@@ -0,0 +1,162 @@
+import com.bubiu.counter.entity.StartThread;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * 延迟写入队列：同一个 key 在写入磁盘前多次 put 只保留最后一次，由后台线程按批写入；
+ * 正在写入的数据在写完之前依然可以读到
+ */
+class WriteBehind {
+    private final int maxPending;
+    private final long flushDelayMillis;
+    private final Writer writer;
+    private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+    private final Map<String, PendingWrite> writing = new HashMap<>();
+    /**
+     * 为 false 时 pending 和 writing 都是空的，读取可以不加锁直接返回
+     */
+    private volatile boolean draining;
+    private boolean flushRequested;
+
+    WriteBehind(int maxPending, long flushDelayMillis, Writer writer) {
+        this.maxPending = maxPending;
+        this.flushDelayMillis = flushDelayMillis;
+        this.writer = writer;
+    }
+
+    synchronized void put(String key, PendingWrite write) {
+        boolean interrupted = false;
+        while (pending.size() >= maxPending && !pending.containsKey(key)) {
+            // 只唤醒一次写入线程；每个等待的线程都 notifyAll 会互相唤醒，写入线程抢不到锁
+            if (!flushRequested) {
+                flushRequested = true;
+                notifyAll();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        pending.put(key, write);
+        if (!draining) {
+            draining = true;
+            StartThread.start(this::drain);
+        }
+    }
+
+    PendingWrite get(String key) {
+        if (!draining) {
+            return null;
+        }
+        synchronized (this) {
+            PendingWrite write = pending.get(key);
+            return write != null ? write : writing.get(key);
+        }
+    }
+
+    /**
+     * 丢弃还没写入的数据，并等待正在写入的数据写完，之后才能删除磁盘上的文件
+     */
+    synchronized boolean remove(String key) {
+        boolean removed = pending.remove(key) != null;
+        boolean interrupted = false;
+        while (writing.containsKey(key)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return removed;
+    }
+
+    synchronized void clear() {
+        pending.clear();
+        awaitIdle();
+    }
+
+    synchronized void flush() {
+        flushRequested = true;
+        notifyAll();
+        awaitIdle();
+    }
+
+    private void awaitIdle() {
+        boolean interrupted = false;
+        while (draining) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Map<String, PendingWrite> batch;
+            synchronized (this) {
+                if (flushDelayMillis > 0 && !flushRequested && !pending.isEmpty()) {
+                    try {
+                        wait(flushDelayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (pending.isEmpty()) {
+                    draining = false;
+                    flushRequested = false;
+                    notifyAll();
+                    return;
+                }
+                batch = new LinkedHashMap<>(pending);
+                pending.clear();
+                writing.putAll(batch);
+                notifyAll();
+            }
+            for (Entry<String, PendingWrite> entry : batch.entrySet()) {
+                try {
+                    writer.write(entry.getKey(), entry.getValue().value,
+                            entry.getValue().expireTime);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            synchronized (this) {
+                writing.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 把一条数据真正写入磁盘
+     */
+    interface Writer {
+        void write(String key, byte[] value, long expireTime) throws IOException;
+    }
+
+    static class PendingWrite {
+        final byte[] value;
+        final long expireTime;
+
+        PendingWrite(byte[] value, long expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindTest {
+    private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void writesInFirstPutOrderKeepingOnlyLastValue() {
+        WriteBehind writeBehind = new WriteBehind(100, 60000, this::record);
+        writeBehind.put("a", write("a1"));
+        writeBehind.put("b", write("b1"));
+        writeBehind.put("a", write("a2"));
+        writeBehind.put("c", write("c1"));
+        writeBehind.flush();
+
+        assertEquals(Arrays.asList("a=a2", "b=b1", "c=c1"), written);
+        assertNull(writeBehind.get("a"));
+    }
+
+    @Test
+    public void laterPutIsWrittenAfterEarlierBatch() {
+        WriteBehind writeBehind = new WriteBehind(100, 0, this::record);
+        writeBehind.put("a", write("a1"));
+        writeBehind.flush();
+        writeBehind.put("a", write("a2"));
+        writeBehind.flush();
+
+        assertEquals(Arrays.asList("a=a1", "a=a2"), written);
+    }
+
+    @Test
+    public void pendingAndWritingValuesAreReadable() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        WriteBehind writeBehind = new WriteBehind(100, 0, (key, value, expireTime) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            record(key, value, expireTime);
+        });
+        WriteBehind.PendingWrite first = write("a1");
+        writeBehind.put("a", first);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // 正在写入的数据依然可以读到，新的 put 在这一批写完后再写
+        assertSame(first, writeBehind.get("a"));
+        WriteBehind.PendingWrite second = write("a2");
+        writeBehind.put("a", second);
+        assertSame(second, writeBehind.get("a"));
+
+        release.countDown();
+        writeBehind.flush();
+        assertEquals(Arrays.asList("a=a1", "a=a2"), written);
+        assertNull(writeBehind.get("a"));
+    }
+
+    @Test
+    public void removeDropsPendingWrite() {
+        WriteBehind writeBehind = new WriteBehind(100, 60000, this::record);
+        writeBehind.put("a", write("a1"));
+        writeBehind.put("b", write("b1"));
+        assertTrue(writeBehind.remove("a"));
+        assertFalse(writeBehind.remove("c"));
+        writeBehind.flush();
+
+        assertEquals(Collections.singletonList("b=b1"), written);
+    }
+
+    private static WriteBehind.PendingWrite write(String value) {
+        return new WriteBehind.PendingWrite(value.getBytes(), Utils.NEVER_EXPIRE);
+    }
+
+    private void record(String key, byte[] value, long expireTime) {
+        written.add(key + "=" + new String(value));
+    }
+}